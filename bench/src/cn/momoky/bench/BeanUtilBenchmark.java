@@ -0,0 +1,52 @@
+package cn.momoky.bench;
+
+import cn.momoky.bench.model.User;
+import cn.momoky.util.BeanUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @ClassName BeanUtilBenchmark
+ * @Description BeanUtil 中基于反射的 objectForMap 和 getValue
+ * @Author 钟智峰
+ * @Date 2020/9/21 10:00
+ * @Version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BeanUtilBenchmark {
+
+    private Map<String, Object> row;
+    private User user;
+
+    @Setup
+    public void setup() {
+        row = new HashMap<>();
+        row.put("id", 1L);
+        row.put("name", "user-1");
+        row.put("email", "user-1@example.com");
+        row.put("age", 30);
+        row.put("score", 7L);
+        row.put("active", Boolean.TRUE);
+        row.put("balance", BigDecimal.ONE);
+        user = BeanUtil.objectForMap(row, User.class);
+    }
+
+    @Benchmark
+    public User objectForMap() {
+        return BeanUtil.objectForMap(row, User.class);
+    }
+
+    @Benchmark
+    public Object getValue() {
+        return BeanUtil.getValue(user, User.class, "name");
+    }
+}
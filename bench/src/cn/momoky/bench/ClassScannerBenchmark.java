@@ -0,0 +1,33 @@
+package cn.momoky.bench;
+
+import cn.momoky.util.ClassScanner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @ClassName ClassScannerBenchmark
+ * @Description ClassScanner 扫描 sql-mapper 自身的包: scan 列出并加载全部类, scanMappers 解析常量池只加载 @Mapper 接口
+ * @Author 钟智峰
+ * @Date 2020/9/21 10:00
+ * @Version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassScannerBenchmark {
+
+    @Benchmark
+    public List<Class<?>> scan() {
+        return ClassScanner.scan("cn.momoky");
+    }
+
+    @Benchmark
+    public List<Class<?>> scanMappers() {
+        return ClassScanner.scanMappers("cn.momoky");
+    }
+}
@@ -0,0 +1,88 @@
+package cn.momoky.bench;
+
+import cn.momoky.sql.SqlMapperFactory;
+import cn.momoky.sql.SqlMapperFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * @ClassName EmbeddedDatabase
+ * @Description 基准测试使用的 H2 内存数据库, 按 bench.properties 建表并写入 ROWS 行数据
+ * @Author 钟智峰
+ * @Date 2020/9/21 10:00
+ * @Version 1.0
+ */
+public final class EmbeddedDatabase {
+
+    public static final String PROPERTIES = "bench.properties";
+    public static final int ROWS = 10_000;
+
+    private static volatile boolean initialized = false;
+
+    private EmbeddedDatabase() {
+    }
+
+    public static Properties properties() {
+        try (InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(PROPERTIES)) {
+            Properties properties = new Properties();
+            properties.load(in);
+            return properties;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @Description 建表并写入数据后返回 SqlMapperFactory, 多次调用只初始化一次
+     */
+    public static synchronized SqlMapperFactory factory() {
+        if (!initialized) {
+            init(properties());
+            initialized = true;
+        }
+        return SqlMapperFactoryBuilder.build(PROPERTIES);
+    }
+
+    private static void init(Properties properties) {
+        try {
+            Class.forName(properties.getProperty("driver"));
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+        // 内存库在最后一个连接关闭前一直存在, DB_CLOSE_DELAY=-1 使其存活到 JVM 退出
+        try (Connection conn = DriverManager.getConnection(properties.getProperty("url"),
+                properties.getProperty("user"), properties.getProperty("password"))) {
+            try (Statement st = conn.createStatement()) {
+                st.execute("drop table if exists users");
+                st.execute("drop table if exists events");
+                st.execute("create table users(id bigint primary key, name varchar(64), email varchar(128), "
+                        + "age int, score bigint, active boolean, balance decimal(12, 2))");
+                st.execute("create table events(id bigint auto_increment primary key, user_id bigint, payload varchar(256))");
+            }
+            conn.setAutoCommit(false);
+            try (PreparedStatement pst = conn.prepareStatement("insert into users values(?, ?, ?, ?, ?, ?, ?)")) {
+                for (int i = 1; i <= ROWS; i++) {
+                    pst.setLong(1, i);
+                    pst.setString(2, "user-" + i);
+                    pst.setString(3, "user-" + i + "@example.com");
+                    pst.setInt(4, 18 + i % 60);
+                    pst.setLong(5, i * 7L);
+                    pst.setBoolean(6, i % 3 != 0);
+                    pst.setBigDecimal(7, java.math.BigDecimal.valueOf(i, 2));
+                    pst.addBatch();
+                }
+                pst.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package cn.momoky.bench;
+
+import cn.momoky.bench.mapper.UserMapper;
+import cn.momoky.bench.model.User;
+import cn.momoky.sql.ColumnarResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @ClassName MapperBenchmark
+ * @Description SqlMapperFactory.execute 的热点路径: 参数绑定、单行/多行 Bean 映射、Map 映射、
+ *              整表读取单列/多列数值 (装箱与基本类型数组、按列存放对比) 和带自增主键的插入
+ * @Author 钟智峰
+ * @Date 2020/9/21 10:00
+ * @Version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapperBenchmark {
+
+    private UserMapper mapper;
+    private User probe;
+
+    @Setup
+    public void setup() {
+        mapper = EmbeddedDatabase.factory().getMapper(UserMapper.class);
+        probe = new User();
+        probe.setAge(30);
+        probe.setScore(1000);
+        probe.setName("nobody");
+        probe.setActive(true);
+    }
+
+    private static long randomId() {
+        return ThreadLocalRandom.current().nextLong(1, EmbeddedDatabase.ROWS + 1);
+    }
+
+    // 四个占位符都通过嵌套属性绑定, 结果只有一行一列
+    @Benchmark
+    public Long bindBeanProperties() {
+        return mapper.countLike(probe);
+    }
+
+    @Benchmark
+    public User singleRowBean() {
+        return mapper.findById(randomId());
+    }
+
+    @Benchmark
+    public List<User> manyRowBeans() {
+        return mapper.findFirst(1000);
+    }
+
+    @Benchmark
+    public Map<String, Object> singleRowMap() {
+        return mapper.findMapById(randomId());
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> manyRowMaps() {
+        return mapper.findMaps(1000);
+    }
+
+    // 整表 10000 行单列, List<Long> 逐个装箱
+    @Benchmark
+    public List<Long> allIdsBoxed() {
+        return mapper.findIds(EmbeddedDatabase.ROWS);
+    }
+
+    @Benchmark
+    public long[] allIdsArray() {
+        return mapper.findIdArray(EmbeddedDatabase.ROWS);
+    }
+
+    // 整表 10000 行四列数值, 每行一个 HashMap
+    @Benchmark
+    public List<Map<String, Object>> allMetricsMaps() {
+        return mapper.findMetrics(EmbeddedDatabase.ROWS);
+    }
+
+    @Benchmark
+    public ColumnarResult allMetricsColumnar() {
+        return mapper.findMetricColumns(EmbeddedDatabase.ROWS);
+    }
+
+    @Benchmark
+    public Object insertWithGeneratedKey() {
+        return mapper.insertEvent(randomId(), "payload");
+    }
+}
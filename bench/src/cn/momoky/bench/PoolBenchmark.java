@@ -0,0 +1,67 @@
+package cn.momoky.bench;
+
+import cn.momoky.sql.MDataSource;
+import cn.momoky.sql.PoolConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @ClassName PoolBenchmark
+ * @Description MDataSource 借出和归还连接, 分别在 1、4、16 个线程下竞争 pool.maxSize 个连接
+ * @Author 钟智峰
+ * @Date 2020/9/21 10:00
+ * @Version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PoolBenchmark {
+
+    private MDataSource dataSource;
+
+    @Setup
+    public void setup() {
+        Properties properties = EmbeddedDatabase.properties();
+        PoolConfig config = PoolConfig.fromProperties(properties);
+        // 只测借出和归还, 不校验连接
+        config.setValidateOnBorrow(false);
+        dataSource = new MDataSource(properties.getProperty("driver"), properties.getProperty("url"),
+                properties.getProperty("user"), properties.getProperty("password"), config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    private boolean borrowAndReturn() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return conn.isClosed();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean borrowReturn1Thread() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean borrowReturn4Threads() throws SQLException {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean borrowReturn16Threads() throws SQLException {
+        return borrowAndReturn();
+    }
+}
@@ -0,0 +1,43 @@
+package cn.momoky.bench.mapper;
+
+import cn.momoky.annotation.*;
+import cn.momoky.bench.model.User;
+import cn.momoky.sql.ColumnarResult;
+
+import java.util.List;
+import java.util.Map;
+
+@Mapper
+public interface UserMapper {
+
+    @Query(sql = "select id, name, email, age, score, active, balance from users where id = #{id}")
+    User findById(@Param(name = "id") long id);
+
+    @Query(sql = "select count(*) from users where age >= #{u.age} and score >= #{u.score} and name <> #{u.name} and active = #{u.active}")
+    Long countLike(@Param(name = "u") User user);
+
+    @Query(sql = "select id, name, email, age, score, active, balance from users where id <= #{limit} order by id")
+    List<User> findFirst(@Param(name = "limit") long limit);
+
+    @Query(sql = "select id, name, email, age, score, active, balance from users where id = #{id}")
+    Map<String, Object> findMapById(@Param(name = "id") long id);
+
+    @Query(sql = "select id, name, email, age, score, active, balance from users where id <= #{limit} order by id")
+    List<Map<String, Object>> findMaps(@Param(name = "limit") long limit);
+
+    @Query(sql = "select id from users where id <= #{limit} order by id")
+    List<Long> findIds(@Param(name = "limit") long limit);
+
+    @Query(sql = "select id from users where id <= #{limit} order by id")
+    long[] findIdArray(@Param(name = "limit") long limit);
+
+    @Query(sql = "select id, age, score, balance from users where id <= #{limit} order by id")
+    List<Map<String, Object>> findMetrics(@Param(name = "limit") long limit);
+
+    @Query(sql = "select id, age, score, balance from users where id <= #{limit} order by id")
+    ColumnarResult findMetricColumns(@Param(name = "limit") long limit);
+
+    @Insert(sql = "insert into events(user_id, payload) values(#{userId}, #{payload})", generatedKey = true)
+    Object insertEvent(@Param(name = "userId") long userId, @Param(name = "payload") String payload);
+
+}
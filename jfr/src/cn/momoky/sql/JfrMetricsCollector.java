@@ -0,0 +1,29 @@
+package cn.momoky.sql;
+
+/**
+ * @ClassName JfrMetricsCollector
+ * @Description 将每次调用提交为 JFR 事件 cn.momoky.sql.Query, 没有开启 JFR 记录时只做一次 isEnabled 判断.
+ *              依赖 jdk.jfr, 在单独的 jfr 模块中按 Java 11 编译; SqlMapperFactory 通过反射创建, 核心代码仍兼容 Java 8
+ * @Author 钟智峰
+ * @Date 2020/9/22 11:35
+ * @Version 1.0
+ */
+final class JfrMetricsCollector implements MetricsCollector {
+
+    @Override
+    public void record(Invocation invocation) {
+        QueryEvent event = new QueryEvent();
+        if (!event.isEnabled()) return;
+        event.method = invocation.getMethodName();
+        event.sql = invocation.getSql();
+        event.acquire = invocation.getAcquireNanos();
+        event.bind = invocation.getBindNanos();
+        event.execute = invocation.getExecuteNanos();
+        event.mapping = invocation.getMappingNanos();
+        event.total = invocation.getTotalNanos();
+        event.rows = invocation.getRows();
+        event.cacheHit = invocation.isCacheHit();
+        if (invocation.getError() != null) event.error = invocation.getError().toString();
+        event.commit();
+    }
+}
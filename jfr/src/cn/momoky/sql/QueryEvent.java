@@ -0,0 +1,59 @@
+package cn.momoky.sql;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * @ClassName QueryEvent
+ * @Description Mapper 方法调用的 JFR 事件, 在 JDK Mission Control 中位于 sql-mapper 分类下
+ * @Author 钟智峰
+ * @Date 2020/9/22 11:30
+ * @Version 1.0
+ */
+@Name("cn.momoky.sql.Query")
+@Label("Mapper Query")
+@Category("sql-mapper")
+@Description("一次 Mapper 方法调用")
+@StackTrace(false)
+final class QueryEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("SQL")
+    String sql;
+
+    @Label("Acquire")
+    @Timespan(Timespan.NANOSECONDS)
+    long acquire;
+
+    @Label("Bind")
+    @Timespan(Timespan.NANOSECONDS)
+    long bind;
+
+    @Label("Execute")
+    @Timespan(Timespan.NANOSECONDS)
+    long execute;
+
+    @Label("Mapping")
+    @Timespan(Timespan.NANOSECONDS)
+    long mapping;
+
+    @Label("Total")
+    @Timespan(Timespan.NANOSECONDS)
+    long total;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Cache Hit")
+    boolean cacheHit;
+
+    @Label("Error")
+    String error;
+}
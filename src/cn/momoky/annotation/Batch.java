@@ -0,0 +1,17 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 标记 @Insert/@Update/@Delete 方法为批量执行, 方法的 List/Iterable 参数中每个元素绑定一次 SQL,
+ * 在同一个事务中按 size 分批 addBatch/executeBatch
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Batch {
+    // 每批执行的行数, 0 表示使用 batch.size 配置
+    int size() default 0;
+}
@@ -0,0 +1,22 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 开启查询结果缓存. 标注在 Mapper 接口上时对其中所有 @Query 方法生效, 标注在方法上时只对该方法生效.
+ * 同一 Mapper 的 @Insert/@Update/@Delete 执行后清空该 Mapper 的缓存;
+ * 标注在写方法上时 tables 表示该方法修改的表, 执行后同时清空依赖这些表的缓存
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Cache {
+    // 每个方法最多缓存的结果数
+    int size() default 1000;
+    // 结果的存活时间(毫秒), 0 表示不过期
+    long ttl() default 60_000;
+    // 查询依赖的表, 或写方法修改的表
+    String[] tables() default {};
+}
@@ -0,0 +1,26 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 合并单个键的 @Query 方法调用: 同一时间窗口内各线程对该方法的调用收集起来, 按键去重后执行一次 sql 中的 IN 查询,
+ * 再按结果中 key 属性的值将行分给各个调用. sql 中方法唯一的参数按键的集合绑定, 如
+ * {@code @Coalesce(sql = "select * from customer where id in (#{id})", key = "id")}.
+ * 方法返回 Bean/Map 时得到该键的第一行, 返回 List 时得到该键的全部行; 返回 CompletableFuture 时不阻塞调用线程,
+ * 同一线程中连续的调用也能合并. 事务中的调用不合并
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Coalesce {
+    // 按键集合查询的 SQL
+    String sql();
+    // 结果中与键对应的属性或列
+    String key();
+    // 收集调用的时间窗口(毫秒)
+    long window() default 1;
+    // 每次查询最多的键数, 达到后立即查询
+    int maxKeys() default 256;
+}
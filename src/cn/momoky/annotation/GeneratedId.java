@@ -0,0 +1,31 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 在客户端为 @Insert 方法分配主键: 每次用 query 预留一段主键, 之后在内存中分配, 不需要 getGeneratedKeys.
+ * property 为主键所在的参数或参数属性, 如 user.id, 其值为 null 或 0 时在绑定前设置为分配的主键;
+ * @Batch 方法中每个元素分别分配. 同时设置 generatedKey 时返回分配的主键.
+ * 使用相同 query、strategy 和 blockSize 的方法共用一个分配器. query 在执行插入的连接上执行, 应使用不随事务回滚的序列
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface GeneratedId {
+    // 主键所在的参数或属性
+    String property();
+    // 返回一个数值的查询, 如 select nextval('user_seq')
+    String query();
+    Strategy strategy() default Strategy.HILO;
+    // 每次预留的主键个数
+    int blockSize() default 100;
+
+    enum Strategy {
+        // query 返回 hi, 预留 hi * blockSize 到 hi * blockSize + blockSize - 1
+        HILO,
+        // query 返回一段的起始值, 预留起始值开始的 blockSize 个, 序列的步长应为 blockSize
+        BLOCK
+    }
+}
@@ -0,0 +1,22 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * @ResultMap 中的嵌套属性. 属性为 List 时每个不同标识的行加入一个元素, 否则取第一行;
+ * 标识列为 NULL 的行(如 LEFT JOIN 没有匹配)不产生嵌套对象
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({})
+public @interface Nested {
+    // 外层对象的属性名
+    String property();
+    // 嵌套对象的列名前缀, 如 item_
+    String prefix();
+    // 嵌套对象的标识列(不含前缀)
+    String id() default "id";
+    // 嵌套对象的类型, 默认取属性的类型或 List 的元素类型
+    Class<?> type() default void.class;
+}
@@ -0,0 +1,15 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 配置了从库时, @Query 方法默认从从库读取. 标注在 Mapper 接口或方法上时强制从主库读取,
+ * 用于需要读到刚写入数据的查询
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Primary {
+}
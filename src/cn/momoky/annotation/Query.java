@@ -9,4 +9,6 @@ import java.lang.annotation.*;
 @Target(ElementType.METHOD)
 public @interface Query {
     String sql();
+    // 每次从数据库读取的行数, 0 表示使用 query.fetchSize 配置; 返回基本类型数组或 ColumnarResult 时也是数组的初始容量
+    int fetchSize() default 0;
 }
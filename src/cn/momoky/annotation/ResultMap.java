@@ -0,0 +1,20 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 将 JOIN 查询的结果映射为带嵌套对象的 Bean, 用于返回 Bean 或 List&lt;Bean&gt; 的 @Query 方法.
+ * 行按 id 属性对应的列分组, 相同标识的行合并为一个对象, 不要求结果按标识排序;
+ * 以 nested 中 prefix 开头的列去掉前缀后映射到嵌套对象, 不映射到外层对象
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ResultMap {
+    // 外层对象的标识列
+    String id() default "id";
+    // 嵌套的对象和 List 属性
+    Nested[] nested() default {};
+}
@@ -0,0 +1,34 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 分片 Mapper. 标注在 Mapper 接口上时其中所有方法访问 shards 配置的分片库, key 为默认的分片键;
+ * 标注在方法上时可以单独指定分片键以及扇出查询的合并方式.
+ * 分片键的值不为 null 时只访问 floorMod(键, 分片数) 对应的分片(非整数的键取 toString().hashCode());
+ * 查询没有分片键的值时并行访问所有分片并合并结果, 写方法必须提供分片键
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Shard {
+    // 分片键, 与 #{...} 标签的写法相同, 如 customerId 或 order.customerId
+    String key() default "";
+    // 扇出查询合并 List 结果的顺序, 如 "createdAt desc, id", 各分片的 SQL 应按相同的顺序 ORDER BY
+    String orderBy() default "";
+    // 扇出查询合并后最多返回的行数, 0 表示不限制
+    int limit() default 0;
+    // 扇出查询合并各分片结果的方式, 只在方法上生效
+    Merge merge() default Merge.ROWS;
+
+    enum Merge {
+        // 拼接各分片的行: List 按 orderBy 归并, 基本类型数组和 ColumnarResult 按分片顺序拼接; 其他返回值类型扇出时抛出异常
+        ROWS,
+        // int/long/BigDecimal 结果求和, 用于 count(*)、sum(...) 等可加的聚合; avg、max 等不能求和
+        SUM,
+        // 取第一个非空的结果, 用于按非分片键查找只存在于一个分片中的行
+        FIRST
+    }
+}
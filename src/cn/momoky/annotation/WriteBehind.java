@@ -0,0 +1,23 @@
+package cn.momoky.annotation;
+
+
+import java.lang.annotation.*;
+
+/**
+ * 将 @Insert/@Update/@Delete 方法的调用放入缓冲区, 由后台线程合并为 JDBC 批量在一个事务中执行.
+ * 缓冲的行数达到 size 或最早的调用已等待 delay 毫秒时执行一组; 缓冲区已有 capacity 个调用时新的调用阻塞等待.
+ * 方法返回 CompletableFuture 时不阻塞, 事务提交后完成, 结果为该行的更新数或 generatedKey 时的自增主键;
+ * 其他返回值的方法阻塞到提交后返回. 事务中的调用直接执行, 不进入缓冲区
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface WriteBehind {
+    // 每组最多的行数
+    int size() default 256;
+    // 最早的调用最多等待的时间(毫秒)
+    long delay() default 5;
+    // 缓冲区最多容纳的调用数
+    int capacity() default 10_000;
+}
@@ -0,0 +1,316 @@
+package cn.momoky.processor;
+
+import cn.momoky.annotation.*;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @ClassName MapperProcessor
+ * @Description 编译期为 @Mapper 接口生成实现类 Xxx_Impl, 包括从父接口继承的方法, 其中保存已替换为 ? 的 SQL 和 #{...} 标签,
+ *              方法按下标通过 MapperInvoker 分派; 同时生成 META-INF/sql-mapper.index.
+ *              生成的实现类只代替动态代理的分派和静态 SQL 的正则解析: methods() 仍通过反射取得 Method,
+ *              绑定器、行映射器和动态 SQL 模板仍由 SqlMapperFactory 在启动时(或 mapper.lazy 时第一次调用时)创建.
+ *              运行时 SqlMapperFactoryBuilder 读取索引, 自带索引的类路径项不再扫描.
+ *              编译参数 -Asqlmapper.generateImpl=false 时只生成索引, 运行时仍使用动态代理
+ * @Author 钟智峰
+ * @Date 2020/9/20 14:30
+ * @Version 1.0
+ */
+public class MapperProcessor extends AbstractProcessor {
+
+    // 与 SqlMapperFactory 解析 SQL 时使用的表达式一致
+    private static final Pattern TAG = Pattern.compile("#\\{(.*?)\\}");
+
+    private static final String INDEX = "META-INF/sql-mapper.index";
+
+    private static final String GENERATE_IMPL = "sqlmapper.generateImpl";
+
+    // Mapper 接口名 - 生成的实现类名
+    private final Map<String, String> index = new TreeMap<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(Mapper.class.getName());
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(GENERATE_IMPL);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            return false;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Mapper.class)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                error(element, "@Mapper 只能用于接口");
+                continue;
+            }
+            if ("false".equalsIgnoreCase(processingEnv.getOptions().get(GENERATE_IMPL))) {
+                index.put(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString(), null);
+                continue;
+            }
+            try {
+                generate((TypeElement) element);
+            } catch (IOException e) {
+                error(element, "生成 Mapper 实现类失败: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement mapper) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(mapper).getQualifiedName().toString();
+        String qualifiedName = mapper.getQualifiedName().toString();
+        String simpleName = (pkg.isEmpty() ? qualifiedName : qualifiedName.substring(pkg.length() + 1)).replace('.', '_') + "_Impl";
+        String implName = pkg.isEmpty() ? simpleName : pkg + "." + simpleName;
+
+        List<ExecutableElement> methods = new ArrayList<>();
+        collectMethods(mapper, (DeclaredType) mapper.asType(), new HashSet<>(), methods);
+
+        StringBuilder src = new StringBuilder();
+        if (!pkg.isEmpty()) src.append("package ").append(pkg).append(";\n\n");
+        src.append("/**\n * 由 ").append(MapperProcessor.class.getName()).append(" 根据 ").append(qualifiedName).append(" 生成\n */\n");
+        src.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        src.append("public final class ").append(simpleName).append(" implements ").append(qualifiedName).append(" {\n\n");
+
+        // 已替换为 ? 的 SQL 和标签, 下标与 methods() 一致
+        src.append("    public static final String[] SQL = {\n");
+        List<List<String>> tags = new ArrayList<>();
+        for (ExecutableElement method : methods) {
+            String sql = sqlOf(method);
+            if (sql == null) {
+                error(method, "Mapper 方法缺少 @Insert/@Update/@Delete/@Query 注解");
+                sql = "";
+            }
+            List<String> methodTags = new ArrayList<>();
+            Matcher matcher = TAG.matcher(sql);
+            while (matcher.find()) methodTags.add(matcher.group(1));
+            tags.add(methodTags);
+            src.append("            ").append(literal(TAG.matcher(sql).replaceAll("?"))).append(",\n");
+        }
+        src.append("    };\n\n");
+
+        src.append("    public static final String[][] TAGS = {\n");
+        for (List<String> methodTags : tags) {
+            src.append("            {");
+            for (int i = 0; i < methodTags.size(); i++) {
+                if (i > 0) src.append(", ");
+                src.append(literal(methodTags.get(i)));
+            }
+            src.append("},\n");
+        }
+        src.append("    };\n\n");
+
+        src.append("    private final cn.momoky.sql.MapperInvoker invoker;\n\n");
+        src.append("    public ").append(simpleName).append("(cn.momoky.sql.MapperInvoker invoker) {\n");
+        src.append("        this.invoker = invoker;\n");
+        src.append("    }\n\n");
+
+        src.append("    public static java.lang.reflect.Method[] methods() throws NoSuchMethodException {\n");
+        src.append("        return new java.lang.reflect.Method[]{\n");
+        for (ExecutableElement method : methods) {
+            // 继承的方法在声明它的父接口中查找
+            String declaring = ((TypeElement) method.getEnclosingElement()).getQualifiedName().toString();
+            src.append("                ").append(declaring).append(".class.getDeclaredMethod(")
+                    .append(literal(method.getSimpleName().toString()));
+            for (VariableElement param : method.getParameters()) {
+                src.append(", ").append(processingEnv.getTypeUtils().erasure(param.asType())).append(".class");
+            }
+            src.append("),\n");
+        }
+        src.append("        };\n");
+        src.append("    }\n");
+
+        for (int i = 0; i < methods.size(); i++) {
+            src.append('\n');
+            appendMethod(src, methods.get(i), (ExecutableType) processingEnv.getTypeUtils()
+                    .asMemberOf((DeclaredType) mapper.asType(), methods.get(i)), i);
+        }
+        src.append("\n    @Override\n    public String toString() {\n");
+        src.append("        return ").append(literal(simpleName + "[" + qualifiedName + "]")).append(";\n    }\n");
+        src.append("}\n");
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(implName, mapper);
+        try (Writer writer = file.openWriter()) {
+            writer.write(src.toString());
+        }
+        index.put(processingEnv.getElementUtils().getBinaryName(mapper).toString(), implName);
+    }
+
+    /**
+     * @Description 依次收集接口自身和父接口的抽象方法, 子接口中重新声明的方法只保留一次
+     * @param type 当前接口
+     * @param mapper Mapper 接口的类型, 父接口的泛型参数按它替换后判断签名
+     * @param signatures 已收集的方法签名
+     */
+    private void collectMethods(TypeElement type, DeclaredType mapper, Set<String> signatures, List<ExecutableElement> methods) {
+        for (Element e : type.getEnclosedElements()) {
+            if (e.getKind() != ElementKind.METHOD) continue;
+            Set<Modifier> modifiers = e.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.DEFAULT)) continue;
+            ExecutableElement method = (ExecutableElement) e;
+            ExecutableType member = (ExecutableType) processingEnv.getTypeUtils().asMemberOf(mapper, method);
+            StringBuilder signature = new StringBuilder(method.getSimpleName()).append('(');
+            for (TypeMirror param : member.getParameterTypes()) {
+                signature.append(processingEnv.getTypeUtils().erasure(param)).append(',');
+            }
+            if (signatures.add(signature.append(')').toString())) methods.add(method);
+        }
+        for (TypeMirror parent : type.getInterfaces()) {
+            collectMethods((TypeElement) processingEnv.getTypeUtils().asElement(parent), mapper, signatures, methods);
+        }
+    }
+
+    // member 为方法作为 Mapper 成员的类型, 父接口中的泛型参数已替换
+    private void appendMethod(StringBuilder src, ExecutableElement method, ExecutableType member, int index) {
+        src.append("    @Override\n    public ");
+        List<? extends TypeParameterElement> typeParameters = method.getTypeParameters();
+        if (!typeParameters.isEmpty()) {
+            src.append('<');
+            for (int i = 0; i < typeParameters.size(); i++) {
+                TypeParameterElement tp = typeParameters.get(i);
+                if (i > 0) src.append(", ");
+                src.append(tp.getSimpleName());
+                List<? extends TypeMirror> bounds = tp.getBounds();
+                boolean first = true;
+                for (TypeMirror bound : bounds) {
+                    if (bound.toString().equals("java.lang.Object")) continue;
+                    src.append(first ? " extends " : " & ").append(bound);
+                    first = false;
+                }
+            }
+            src.append("> ");
+        }
+        TypeMirror returnType = member.getReturnType();
+        src.append(returnType).append(' ').append(method.getSimpleName()).append('(');
+        List<? extends VariableElement> params = method.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) src.append(", ");
+            VariableElement param = params.get(i);
+            TypeMirror type = member.getParameterTypes().get(i);
+            if (method.isVarArgs() && i == params.size() - 1) {
+                String array = type.toString();
+                src.append(array, 0, array.length() - 2).append("...");
+            } else {
+                src.append(type);
+            }
+            src.append(' ').append(param.getSimpleName());
+        }
+        src.append(')');
+        List<? extends TypeMirror> thrown = member.getThrownTypes();
+        for (int i = 0; i < thrown.size(); i++) {
+            src.append(i == 0 ? " throws " : ", ").append(thrown.get(i));
+        }
+        src.append(" {\n        ");
+
+        StringBuilder call = new StringBuilder("this.invoker.invoke(").append(index).append(", new Object[]{");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) call.append(", ");
+            call.append(params.get(i).getSimpleName());
+        }
+        call.append("})");
+
+        TypeKind kind = returnType.getKind();
+        if (kind == TypeKind.VOID) {
+            src.append(call).append(";\n");
+        } else if (kind.isPrimitive()) {
+            String boxed = processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) returnType)
+                    .getQualifiedName().toString();
+            src.append("return (").append(boxed).append(") ").append(call).append(";\n");
+        } else {
+            src.append("return (").append(returnType).append(") ").append(call).append(";\n");
+        }
+        src.append("    }\n");
+    }
+
+    private static String sqlOf(ExecutableElement method) {
+        Insert insert = method.getAnnotation(Insert.class);
+        if (insert != null) return insert.sql();
+        Delete delete = method.getAnnotation(Delete.class);
+        if (delete != null) return delete.sql();
+        Update update = method.getAnnotation(Update.class);
+        if (update != null) return update.sql();
+        Query query = method.getAnnotation(Query.class);
+        if (query != null) return query.sql();
+        return null;
+    }
+
+    // 写出索引, 增量编译时保留已有索引中的其他 Mapper
+    private void writeIndex() {
+        if (index.isEmpty()) return;
+        Map<String, String> merged = new TreeMap<>();
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            for (String line : existing.getCharContent(true).toString().split("\n")) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int eq = line.indexOf('=');
+                if (eq < 0) merged.put(line, null);
+                else merged.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+            }
+        } catch (IOException | IllegalArgumentException ignored) {
+            // 首次编译没有索引
+        }
+        merged.putAll(index);
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (Writer writer = file.openWriter()) {
+                for (Map.Entry<String, String> entry : merged.entrySet()) {
+                    writer.write(entry.getKey());
+                    if (entry.getValue() != null) writer.write("=" + entry.getValue());
+                    writer.write("\n");
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "写入 " + INDEX + " 失败: " + e.getMessage());
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    // 转换为 Java 字符串字面量, 非 ASCII 字符转义为 \\uXXXX
+    private static String literal(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c > 0x7e) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,88 @@
+package cn.momoky.sql;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @ClassName AsyncExecutors
+ * @Description 创建执行 CompletableFuture 方法的线程池, 由 async.* 配置项控制:
+ *              async.executor = virtual | fixed, 默认在 Java 21 及以上使用虚拟线程, 否则使用固定大小的线程池;
+ *              async.threads 为固定线程池的大小; async.maxConcurrency 为同时执行的最大任务数
+ * @Author 钟智峰
+ * @Date 2020/9/17 19:30
+ * @Version 1.0
+ */
+final class AsyncExecutors {
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * @Description 按配置创建线程池
+     * @param properties 配置文件
+     * @param defaultConcurrency 默认的最大并发数, 一般为连接池大小
+     * @return 线程池
+     */
+    static Executor create(Properties properties, int defaultConcurrency) {
+        String type = properties.getProperty("async.executor", "virtual").trim();
+        int maxConcurrency = Integer.parseInt(properties.getProperty("async.maxConcurrency",
+                String.valueOf(defaultConcurrency)).trim());
+        if (maxConcurrency <= 0) throw new IllegalArgumentException("async.maxConcurrency 必须大于 0");
+
+        if ("virtual".equals(type)) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) return new BoundedExecutor(virtual, maxConcurrency);
+        } else if (!"fixed".equals(type)) {
+            throw new IllegalArgumentException("未知的 async.executor: " + type);
+        }
+
+        int threads = Integer.parseInt(properties.getProperty("async.threads",
+                String.valueOf(maxConcurrency)).trim());
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService fixed = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "sql-mapper-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return threads <= maxConcurrency ? fixed : new BoundedExecutor(fixed, maxConcurrency);
+    }
+
+    // 运行在 Java 21 及以上时通过反射创建虚拟线程池, 否则返回 null
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // 限制同时执行的任务数, 超出的任务在工作线程中等待许可
+    private static final class BoundedExecutor implements Executor {
+
+        private final Executor delegate;
+        private final Semaphore permits;
+
+        BoundedExecutor(Executor delegate, int maxConcurrency) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package cn.momoky.sql;
+
+import cn.momoky.util.BeanUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @ClassName BeanRowMapper
+ * @Description 将 ResultSet 的行直接映射为 Bean, 列 - 属性的对应关系按 ResultSetMetaData 解析一次后缓存,
+ *              之后每行只按列下标调用 getInt/getLong/getString 等方法并通过 setter 的 MethodHandle 赋值.
+ *              用于 @ResultMap 时可以只映射带指定前缀的列, 或忽略属于嵌套对象的列
+ * @Author 钟智峰
+ * @Date 2020/9/14 21:05
+ * @Version 1.0
+ */
+final class BeanRowMapper<T> {
+
+    private static final int OBJECT = 0;
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int BOXED_INT = 3;
+    private static final int LONG = 4;
+    private static final int BOXED_LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int BOXED_DOUBLE = 7;
+    private static final int BOOLEAN = 8;
+    private static final int BOXED_BOOLEAN = 9;
+    private static final int DECIMAL = 10;
+    // InputStream/Reader/ReadableByteChannel 属性, 只在结果集定位在该行时有效
+    private static final int STREAM = 11;
+    private static final int FLOAT = 12;
+    private static final int SHORT = 13;
+    private static final int BYTE = 14;
+    private static final int CHAR = 15;
+
+    private final Class<T> type;
+    private final MethodHandle constructor;
+    // 属性名 - setter
+    private final Map<String, MethodHandle> setters;
+    // 忽略大小写和下划线后的属性名 - setter, 用于匹配 USER_NAME 之类的列名
+    private final Map<String, MethodHandle> normalizedSetters = new HashMap<>();
+    // 只映射以此开头的列, 列名去掉前缀后匹配属性, 空字符串表示所有列
+    private final String prefix;
+    // 不映射以这些前缀开头的列
+    private final String[] excludedPrefixes;
+
+    // 是否有按流读取的属性
+    private final boolean streaming;
+
+    // 最近一次解析的映射计划, 列的数量或名称变化时重新解析
+    private volatile Plan<T> plan;
+
+    BeanRowMapper(Class<T> type) {
+        this(type, "", new String[0]);
+    }
+
+    BeanRowMapper(Class<T> type, String prefix, String[] excludedPrefixes) {
+        this.type = type;
+        this.prefix = prefix;
+        this.excludedPrefixes = excludedPrefixes;
+        try {
+            Constructor<T> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            this.constructor = MethodHandles.lookup().unreflectConstructor(c)
+                    .asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException(type.getName() + " 缺少无参构造方法", e);
+        }
+        this.setters = BeanUtil.setterHandles(type);
+        boolean streaming = false;
+        for (Map.Entry<String, MethodHandle> entry : setters.entrySet()) {
+            normalizedSetters.putIfAbsent(normalize(entry.getKey()), entry.getValue());
+            streaming |= Lobs.isStream(entry.getValue().type().parameterType(1));
+        }
+        this.streaming = streaming;
+    }
+
+    Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @Description 是否有 InputStream/Reader/ReadableByteChannel 属性, 这些属性读取的是结果集当前行,
+     *              只能用于逐行读取的查询
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @Description 取得与结果集列结构对应的映射计划, 列结构未变化时复用缓存的计划
+     * @param rs 结果集
+     * @return 映射计划
+     */
+    Plan<T> plan(ResultSet rs) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        Plan<T> current = plan;
+        if (current != null && current.matches(metaData, columnCount)) return current;
+        current = resolve(metaData, columnCount);
+        plan = current;
+        return current;
+    }
+
+    private Plan<T> resolve(ResultSetMetaData metaData, int columnCount) throws SQLException {
+        String[] labels = new String[columnCount];
+        int[] columns = new int[columnCount];
+        int[] kinds = new int[columnCount];
+        MethodHandle[] handles = new MethodHandle[columnCount];
+        Class<?>[] types = new Class<?>[columnCount];
+        int n = 0;
+        for (int i = 1; i <= columnCount; i++) {
+            String label = metaData.getColumnLabel(i);
+            labels[i - 1] = label;
+            String property = property(label);
+            if (property == null) continue;
+            MethodHandle setter = setters.get(property);
+            if (setter == null) setter = normalizedSetters.get(normalize(property));
+            // 没有对应属性的列直接忽略
+            if (setter == null) continue;
+
+            Class<?> propertyType = setter.type().parameterType(1);
+            int kind = kindOf(propertyType);
+            columns[n] = i;
+            kinds[n] = kind;
+            types[n] = propertyType;
+            handles[n] = setter.asType(MethodType.methodType(void.class, Object.class,
+                    propertyType.isPrimitive() ? propertyType : Object.class));
+            n++;
+        }
+        ColumnBinding[] bindings = new ColumnBinding[n];
+        for (int i = 0; i < n; i++) {
+            bindings[i] = new ColumnBinding(columns[i], kinds[i], handles[i], types[i]);
+        }
+        return new Plan<>(constructor, labels, bindings);
+    }
+
+    // 列对应的属性名, 不属于本映射器的列返回 null
+    private String property(String label) {
+        for (String excluded : excludedPrefixes) {
+            if (label.regionMatches(true, 0, excluded, 0, excluded.length())) return null;
+        }
+        if (prefix.isEmpty()) return label;
+        if (label.length() <= prefix.length() || !label.regionMatches(true, 0, prefix, 0, prefix.length())) return null;
+        return label.substring(prefix.length());
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == String.class) return STRING;
+        if (type == int.class) return INT;
+        if (type == Integer.class) return BOXED_INT;
+        if (type == long.class) return LONG;
+        if (type == Long.class) return BOXED_LONG;
+        if (type == double.class) return DOUBLE;
+        if (type == Double.class) return BOXED_DOUBLE;
+        if (type == boolean.class) return BOOLEAN;
+        if (type == Boolean.class) return BOXED_BOOLEAN;
+        if (type == BigDecimal.class) return DECIMAL;
+        if (Lobs.isStream(type)) return STREAM;
+        if (type == float.class) return FLOAT;
+        if (type == short.class) return SHORT;
+        if (type == byte.class) return BYTE;
+        if (type == char.class) return CHAR;
+        return OBJECT;
+    }
+
+    private static String normalize(String name) {
+        return name.replace("_", "").toLowerCase();
+    }
+
+    static final class Plan<T> implements RowReader<T> {
+
+        private final MethodHandle constructor;
+        private final String[] labels;
+        private final ColumnBinding[] bindings;
+
+        Plan(MethodHandle constructor, String[] labels, ColumnBinding[] bindings) {
+            this.constructor = constructor;
+            this.labels = labels;
+            this.bindings = bindings;
+        }
+
+        private boolean matches(ResultSetMetaData metaData, int columnCount) throws SQLException {
+            if (labels.length != columnCount) return false;
+            for (int i = 0; i < columnCount; i++) {
+                if (!labels[i].equals(metaData.getColumnLabel(i + 1))) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @Description 将结果集当前行映射为 Bean
+         * @param rs 已定位到某一行的结果集
+         * @return Bean
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public T read(ResultSet rs) throws SQLException {
+            try {
+                Object bean = (Object) constructor.invokeExact();
+                for (ColumnBinding binding : bindings) {
+                    binding.apply(bean, rs);
+                }
+                return (T) bean;
+            } catch (SQLException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static final class ColumnBinding {
+
+        private final int column;
+        private final int kind;
+        // 基本类型属性为 (Object, 基本类型)void, 其他为 (Object, Object)void
+        private final MethodHandle setter;
+        // 属性的类型, 用于 STREAM 和 OBJECT
+        private final Class<?> type;
+
+        ColumnBinding(int column, int kind, MethodHandle setter, Class<?> type) {
+            this.column = column;
+            this.kind = kind;
+            this.setter = setter;
+            this.type = type;
+        }
+
+        void apply(Object bean, ResultSet rs) throws Throwable {
+            switch (kind) {
+                case STRING:
+                    setter.invokeExact(bean, (Object) rs.getString(column));
+                    break;
+                case INT:
+                    setter.invokeExact(bean, rs.getInt(column));
+                    break;
+                case BOXED_INT: {
+                    int v = rs.getInt(column);
+                    setter.invokeExact(bean, rs.wasNull() ? null : (Object) v);
+                    break;
+                }
+                case LONG:
+                    setter.invokeExact(bean, rs.getLong(column));
+                    break;
+                case BOXED_LONG: {
+                    long v = rs.getLong(column);
+                    setter.invokeExact(bean, rs.wasNull() ? null : (Object) v);
+                    break;
+                }
+                case DOUBLE:
+                    setter.invokeExact(bean, rs.getDouble(column));
+                    break;
+                case BOXED_DOUBLE: {
+                    double v = rs.getDouble(column);
+                    setter.invokeExact(bean, rs.wasNull() ? null : (Object) v);
+                    break;
+                }
+                case BOOLEAN:
+                    setter.invokeExact(bean, rs.getBoolean(column));
+                    break;
+                case BOXED_BOOLEAN: {
+                    boolean v = rs.getBoolean(column);
+                    setter.invokeExact(bean, rs.wasNull() ? null : (Object) v);
+                    break;
+                }
+                case DECIMAL:
+                    setter.invokeExact(bean, (Object) rs.getBigDecimal(column));
+                    break;
+                case STREAM:
+                    setter.invokeExact(bean, Lobs.read(rs, column, type));
+                    break;
+                case FLOAT:
+                    setter.invokeExact(bean, rs.getFloat(column));
+                    break;
+                case SHORT:
+                    setter.invokeExact(bean, rs.getShort(column));
+                    break;
+                case BYTE:
+                    setter.invokeExact(bean, rs.getByte(column));
+                    break;
+                case CHAR: {
+                    String v = rs.getString(column);
+                    setter.invokeExact(bean, v == null || v.isEmpty() ? '\0' : v.charAt(0));
+                    break;
+                }
+                default:
+                    setter.invokeExact(bean, getObject(rs));
+            }
+        }
+
+        // 按属性类型读取, 如 TIMESTAMP 列读取为 LocalDateTime; 驱动不支持该转换时退回 getObject(column)
+        private Object getObject(ResultSet rs) throws SQLException {
+            if (type == Object.class) return rs.getObject(column);
+            try {
+                return rs.getObject(column, type);
+            } catch (SQLException e) {
+                Object value = rs.getObject(column);
+                if (value == null || type.isInstance(value)) return value;
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package cn.momoky.sql;
+
+import java.util.Iterator;
+
+/**
+ * @ClassName CloseableIterator
+ * @Description 查询方法返回 Iterator 时的实际类型. 迭代器持有连接直到遍历结束或 close,
+ *              未遍历完就丢弃的迭代器不会归还连接, 应遍历完或在 try-with-resources 中使用;
+ *              查询方法也可以直接声明返回 CloseableIterator
+ * @Author 钟智峰
+ * @Date 2020/9/15 20:10
+ * @Version 1.0
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+
+    /**
+     * @Description 关闭结果集和语句, 并将连接归还到连接池
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,282 @@
+package cn.momoky.sql;
+
+import java.lang.reflect.Array;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * @ClassName ColumnReader
+ * @Description 将结果集读为基本类型数组或 ColumnarResult, 用 getLong/getInt/getDouble 直接写入数组, 不创建包装对象和每行的 Map.
+ *              按块读取, 第一块的大小为 fetchSize, 之后每块翻倍直到 MAX_CHUNK, 扩容时不复制已读取的行, 读完后一次复制为结果数组
+ * @Author 钟智峰
+ * @Date 2020/9/25 15:30
+ * @Version 1.0
+ */
+final class ColumnReader {
+
+    // 未设置 fetchSize 时数组的初始容量
+    private static final int DEFAULT_CAPACITY = 256;
+    // 每块的最大行数
+    private static final int MAX_CHUNK = 4096;
+
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int OBJECT = 3;
+
+    private ColumnReader() {
+    }
+
+    /**
+     * @Description 是否按列读取的返回值类型
+     */
+    static boolean isColumnar(Class<?> returnType) {
+        return returnType == long[].class || returnType == int[].class || returnType == double[].class
+                || returnType == ColumnarResult.class;
+    }
+
+    /**
+     * @Description 读取结果集的全部行
+     * @param returnType long[], int[], double[] 读取第一列, ColumnarResult 读取全部列
+     * @param fetchSize 查询的 fetchSize, 作为数组的初始容量
+     */
+    static Object read(Class<?> returnType, ResultSet rs, int fetchSize) throws SQLException {
+        int capacity = fetchSize > 0 ? fetchSize : DEFAULT_CAPACITY;
+        if (returnType == long[].class) return readLongs(rs, capacity);
+        if (returnType == int[].class) return readInts(rs, capacity);
+        if (returnType == double[].class) return readDoubles(rs, capacity);
+        return readColumns(rs, capacity);
+    }
+
+    /**
+     * @Description 结果的行数
+     */
+    static int rowCount(Object result) {
+        if (result instanceof ColumnarResult) return ((ColumnarResult) result).rowCount;
+        return Array.getLength(result);
+    }
+
+    private static long[] readLongs(ResultSet rs, int capacity) throws SQLException {
+        Chunks chunks = new Chunks();
+        long[] chunk = new long[capacity];
+        int n = 0;
+        while (rs.next()) {
+            if (n == chunk.length) {
+                chunks.add(chunk);
+                chunk = new long[nextSize(chunk.length)];
+                n = 0;
+            }
+            chunk[n++] = rs.getLong(1);
+        }
+        return (long[]) chunks.finish(chunk, n);
+    }
+
+    private static int[] readInts(ResultSet rs, int capacity) throws SQLException {
+        Chunks chunks = new Chunks();
+        int[] chunk = new int[capacity];
+        int n = 0;
+        while (rs.next()) {
+            if (n == chunk.length) {
+                chunks.add(chunk);
+                chunk = new int[nextSize(chunk.length)];
+                n = 0;
+            }
+            chunk[n++] = rs.getInt(1);
+        }
+        return (int[]) chunks.finish(chunk, n);
+    }
+
+    private static double[] readDoubles(ResultSet rs, int capacity) throws SQLException {
+        Chunks chunks = new Chunks();
+        double[] chunk = new double[capacity];
+        int n = 0;
+        while (rs.next()) {
+            if (n == chunk.length) {
+                chunks.add(chunk);
+                chunk = new double[nextSize(chunk.length)];
+                n = 0;
+            }
+            chunk[n++] = rs.getDouble(1);
+        }
+        return (double[]) chunks.finish(chunk, n);
+    }
+
+    private static ColumnarResult readColumns(ResultSet rs, int capacity) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        String[] names = new String[columnCount];
+        int[] kinds = new int[columnCount];
+        Object[] columns = new Object[columnCount];
+        BitSet[] nulls = new BitSet[columnCount];
+        Chunks[] chunks = new Chunks[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = metaData.getColumnLabel(i + 1);
+            kinds[i] = kindOf(metaData, i + 1);
+            columns[i] = newColumn(kinds[i], capacity);
+            chunks[i] = new Chunks();
+        }
+
+        // n 为当前块中的行数, offset 为之前各块的行数
+        int n = 0;
+        int offset = 0;
+        while (rs.next()) {
+            if (n == capacity) {
+                capacity = nextSize(capacity);
+                for (int i = 0; i < columnCount; i++) {
+                    chunks[i].add(columns[i]);
+                    columns[i] = newColumn(kinds[i], capacity);
+                }
+                offset += n;
+                n = 0;
+            }
+            for (int i = 0; i < columnCount; i++) {
+                int index = i + 1;
+                switch (kinds[i]) {
+                    case INT:
+                        ((int[]) columns[i])[n] = rs.getInt(index);
+                        break;
+                    case LONG:
+                        ((long[]) columns[i])[n] = rs.getLong(index);
+                        break;
+                    case DOUBLE:
+                        ((double[]) columns[i])[n] = rs.getDouble(index);
+                        break;
+                    default:
+                        ((Object[]) columns[i])[n] = rs.getObject(index);
+                        continue;
+                }
+                if (rs.wasNull()) {
+                    if (nulls[i] == null) nulls[i] = new BitSet();
+                    nulls[i].set(offset + n);
+                }
+            }
+            n++;
+        }
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = chunks[i].finish(columns[i], n);
+        }
+        return new ColumnarResult(names, columns, nulls, offset + n);
+    }
+
+    private static int nextSize(int size) {
+        return Math.max(size, Math.min(size * 2, MAX_CHUNK));
+    }
+
+    private static int kindOf(ResultSetMetaData metaData, int column) throws SQLException {
+        switch (metaData.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                // 小数不转换为 double, 避免丢失精度
+                return metaData.getScale(column) == 0 && metaData.getPrecision(column) <= 18 ? LONG : OBJECT;
+            default:
+                return OBJECT;
+        }
+    }
+
+    private static Object newColumn(int kind, int capacity) {
+        switch (kind) {
+            case INT:
+                return new int[capacity];
+            case LONG:
+                return new long[capacity];
+            case DOUBLE:
+                return new double[capacity];
+            default:
+                return new Object[capacity];
+        }
+    }
+
+    /**
+     * @ClassName Chunks
+     * @Description 一列已读满的块
+     */
+    private static final class Chunks {
+
+        private final List<Object> full = new ArrayList<>();
+        private int size;
+
+        void add(Object chunk) {
+            full.add(chunk);
+            size += Array.getLength(chunk);
+        }
+
+        /**
+         * @Description 将已读满的块和最后一块的前 n 行复制为一个数组, 只有一块且恰好读满时直接返回该块
+         */
+        Object finish(Object last, int n) {
+            if (full.isEmpty() && n == Array.getLength(last)) return last;
+            Object result = Array.newInstance(last.getClass().getComponentType(), size + n);
+            int offset = 0;
+            for (Object chunk : full) {
+                int length = Array.getLength(chunk);
+                System.arraycopy(chunk, 0, result, offset, length);
+                offset += length;
+            }
+            System.arraycopy(last, 0, result, offset, n);
+            return result;
+        }
+    }
+
+    /**
+     * @Description 按顺序拼接多个结果, 用于合并各分片的查询结果
+     * @param results 同一查询的结果, 不含 null
+     */
+    static Object concat(List<Object> results) {
+        Object first = results.get(0);
+        if (!(first instanceof ColumnarResult)) {
+            return concatArrays(results);
+        }
+        ColumnarResult head = (ColumnarResult) first;
+        int columnCount = head.columns.length;
+        Object[] columns = new Object[columnCount];
+        BitSet[] nulls = new BitSet[columnCount];
+        int rowCount = 0;
+        for (Object result : results) rowCount += ((ColumnarResult) result).rowCount;
+        for (int i = 0; i < columnCount; i++) {
+            Object column = Array.newInstance(head.columns[i].getClass().getComponentType(), rowCount);
+            int offset = 0;
+            for (Object result : results) {
+                ColumnarResult part = (ColumnarResult) result;
+                System.arraycopy(part.columns[i], 0, column, offset, part.rowCount);
+                if (part.nulls[i] != null) {
+                    if (nulls[i] == null) nulls[i] = new BitSet();
+                    BitSet partNulls = part.nulls[i];
+                    for (int row = partNulls.nextSetBit(0); row >= 0; row = partNulls.nextSetBit(row + 1)) {
+                        nulls[i].set(offset + row);
+                    }
+                }
+                offset += part.rowCount;
+            }
+            columns[i] = column;
+        }
+        return new ColumnarResult(head.names, columns, nulls, rowCount);
+    }
+
+    private static Object concatArrays(List<Object> results) {
+        int length = 0;
+        for (Object result : results) length += Array.getLength(result);
+        Object merged = Array.newInstance(results.get(0).getClass().getComponentType(), length);
+        int offset = 0;
+        for (Object result : results) {
+            int n = Array.getLength(result);
+            System.arraycopy(result, 0, merged, offset, n);
+            offset += n;
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,126 @@
+package cn.momoky.sql;
+
+import java.lang.reflect.Array;
+import java.util.BitSet;
+
+/**
+ * @ClassName ColumnarResult
+ * @Description 按列存放的查询结果, 每列一个数组: 整数列为 int[], BIGINT 和小数位为 0 的 DECIMAL 为 long[],
+ *              浮点列为 double[], 其他列为 Object[]. 数值列中的 NULL 读为 0, 可以用 isNull 区分
+ * @Author 钟智峰
+ * @Date 2020/9/25 15:30
+ * @Version 1.0
+ */
+public final class ColumnarResult {
+
+    final String[] names;
+    // 每列的数组, 长度等于行数
+    final Object[] columns;
+    // 数值列中为 NULL 的行, 没有 NULL 的列为 null
+    final BitSet[] nulls;
+    final int rowCount;
+
+    ColumnarResult(String[] names, Object[] columns, BitSet[] nulls, int rowCount) {
+        this.names = names;
+        this.columns = columns;
+        this.nulls = nulls;
+        this.rowCount = rowCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * @param column 列的下标, 从 0 开始
+     * @return 列名
+     */
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    /**
+     * @Description 按列名查找列, 忽略大小写
+     * @return 列的下标, 从 0 开始
+     */
+    public int findColumn(String label) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(label)) return i;
+        }
+        throw new RuntimeException("结果中没有列 " + label);
+    }
+
+    /**
+     * @Description 列的数组类型, 如 long[].class
+     */
+    public Class<?> getColumnType(String label) {
+        return columns[findColumn(label)].getClass();
+    }
+
+    /**
+     * @Description 取得 long 列, int 列会复制为 long[]
+     */
+    public long[] getLongs(String label) {
+        Object column = columns[findColumn(label)];
+        if (column instanceof long[]) return (long[]) column;
+        if (column instanceof int[]) {
+            int[] ints = (int[]) column;
+            long[] longs = new long[ints.length];
+            for (int i = 0; i < ints.length; i++) longs[i] = ints[i];
+            return longs;
+        }
+        throw new RuntimeException("列 " + label + " 不是整数列");
+    }
+
+    public int[] getInts(String label) {
+        Object column = columns[findColumn(label)];
+        if (column instanceof int[]) return (int[]) column;
+        throw new RuntimeException("列 " + label + " 不是 int 列");
+    }
+
+    /**
+     * @Description 取得 double 列, 整数列会复制为 double[]
+     */
+    public double[] getDoubles(String label) {
+        Object column = columns[findColumn(label)];
+        if (column instanceof double[]) return (double[]) column;
+        double[] doubles = new double[rowCount];
+        if (column instanceof long[]) {
+            long[] longs = (long[]) column;
+            for (int i = 0; i < rowCount; i++) doubles[i] = longs[i];
+        } else if (column instanceof int[]) {
+            int[] ints = (int[]) column;
+            for (int i = 0; i < rowCount; i++) doubles[i] = ints[i];
+        } else {
+            throw new RuntimeException("列 " + label + " 不是数值列");
+        }
+        return doubles;
+    }
+
+    /**
+     * @Description 取得 Object 列, 数值列会装箱复制, NULL 为 null
+     */
+    public Object[] getObjects(String label) {
+        int index = findColumn(label);
+        Object column = columns[index];
+        if (column instanceof Object[]) return (Object[]) column;
+        Object[] objects = new Object[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            objects[i] = isNull(index, i) ? null : Array.get(column, i);
+        }
+        return objects;
+    }
+
+    public boolean isNull(String label, int row) {
+        return isNull(findColumn(label), row);
+    }
+
+    private boolean isNull(int column, int row) {
+        if (columns[column] instanceof Object[]) return ((Object[]) columns[column])[row] == null;
+        return nulls[column] != null && nulls[column].get(row);
+    }
+}
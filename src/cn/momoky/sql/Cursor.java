@@ -0,0 +1,36 @@
+package cn.momoky.sql;
+
+import java.util.stream.Stream;
+
+/**
+ * @ClassName Cursor
+ * @Description 只进游标, 查询方法返回 Cursor 时按需逐行读取和映射结果,
+ *              游标持有连接直到 close 或遍历结束, 应在 try-with-resources 中使用
+ * @Author 钟智峰
+ * @Date 2020/9/15 20:10
+ * @Version 1.0
+ */
+public interface Cursor<T> extends Iterable<T>, AutoCloseable {
+
+    /**
+     * @Description 游标是否仍持有连接
+     */
+    boolean isOpen();
+
+    /**
+     * @Description 已读取的行数
+     */
+    int getRowCount();
+
+    /**
+     * @Description 以 Stream 的形式读取剩余行, 关闭 Stream 时关闭游标
+     */
+    Stream<T> stream();
+
+    /**
+     * @Description 关闭结果集和语句, 并将连接归还到连接池
+     */
+    @Override
+    void close();
+
+}
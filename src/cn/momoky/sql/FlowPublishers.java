@@ -0,0 +1,135 @@
+package cn.momoky.sql;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * @ClassName FlowPublishers
+ * @Description 将 RowPublisher 适配为 java.util.concurrent.Flow.Publisher. 项目按 Java 8 编译, 不能直接引用 Flow,
+ *              运行在 Java 9 及以上时通过动态代理实现 Flow.Publisher 和 Flow.Subscription, 通过 MethodHandle 调用 Flow.Subscriber
+ * @Author 钟智峰
+ * @Date 2020/9/26 16:00
+ * @Version 1.0
+ */
+final class FlowPublishers {
+
+    private static final String PUBLISHER = "java.util.concurrent.Flow$Publisher";
+
+    private FlowPublishers() {
+    }
+
+    /**
+     * @Description 是否为 Flow.Publisher 类型
+     */
+    static boolean isPublisher(Class<?> type) {
+        return type.getName().equals(PUBLISHER);
+    }
+
+    /**
+     * @Description 创建 Flow.Publisher, 每次 subscribe 都交给 RowPublisher 新建订阅
+     */
+    static Object adapt(RowPublisher<Object> publisher) {
+        return Proxy.newProxyInstance(FlowPublishers.class.getClassLoader(), new Class<?>[]{Flow.PUBLISHER},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) return objectMethod(proxy, method, args);
+                    if (args[0] == null) throw new NullPointerException("subscriber");
+                    publisher.subscribe(new FlowSubscriber(args[0]));
+                    return null;
+                });
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return "RowPublisher@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+    }
+
+    // 将 RowPublisher 的信号转发给 Flow.Subscriber
+    private static final class FlowSubscriber implements RowPublisher.Subscriber<Object> {
+
+        private final Object target;
+
+        FlowSubscriber(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onSubscribe(RowPublisher.Subscription subscription) {
+            InvocationHandler handler = (proxy, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) return objectMethod(proxy, method, args);
+                if ("request".equals(method.getName())) subscription.request((Long) args[0]);
+                else subscription.cancel();
+                return null;
+            };
+            Object flowSubscription = Proxy.newProxyInstance(FlowPublishers.class.getClassLoader(),
+                    new Class<?>[]{Flow.SUBSCRIPTION}, handler);
+            call(Flow.ON_SUBSCRIBE, flowSubscription);
+        }
+
+        @Override
+        public void onNext(Object item) {
+            call(Flow.ON_NEXT, item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            call(Flow.ON_ERROR, throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            try {
+                Flow.ON_COMPLETE.invoke(target);
+            } catch (Throwable e) {
+                throw ParamBinder.propagate(e);
+            }
+        }
+
+        private void call(MethodHandle handle, Object arg) {
+            try {
+                handle.invoke(target, arg);
+            } catch (Throwable e) {
+                throw ParamBinder.propagate(e);
+            }
+        }
+    }
+
+    // Flow 的接口和方法, 第一次使用时加载
+    private static final class Flow {
+
+        static final Class<?> PUBLISHER;
+        static final Class<?> SUBSCRIPTION;
+        static final MethodHandle ON_SUBSCRIBE;
+        static final MethodHandle ON_NEXT;
+        static final MethodHandle ON_ERROR;
+        static final MethodHandle ON_COMPLETE;
+
+        static {
+            try {
+                PUBLISHER = Class.forName(FlowPublishers.PUBLISHER);
+                SUBSCRIPTION = Class.forName("java.util.concurrent.Flow$Subscription");
+                Class<?> subscriber = Class.forName("java.util.concurrent.Flow$Subscriber");
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                ON_SUBSCRIBE = lookup.findVirtual(subscriber, "onSubscribe", MethodType.methodType(void.class, SUBSCRIPTION))
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                ON_NEXT = lookup.findVirtual(subscriber, "onNext", MethodType.methodType(void.class, Object.class))
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                ON_ERROR = lookup.findVirtual(subscriber, "onError", MethodType.methodType(void.class, Throwable.class))
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                ON_COMPLETE = lookup.findVirtual(subscriber, "onComplete", MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(void.class, Object.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package cn.momoky.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @ClassName IdAllocator
+ * @Description 按 @GeneratedId 分配主键. 当前段内的分配只有一次 getAndIncrement, 不加锁;
+ *              一段用完时只有一个线程执行查询预留下一段, 其他用完的线程等待后从新的段分配.
+ *              预留查询使用调用方执行插入的连接, 等待的线程不会再占用连接池; 因此查询应使用不随事务回滚的序列.
+ *              未用完的段在进程退出后丢弃, 主键唯一但不保证没有间隔
+ * @Author 钟智峰
+ * @Date 2020/9/28 15:00
+ * @Version 1.0
+ */
+final class IdAllocator {
+
+    // 返回 hi 或段的起始值的查询
+    private final String query;
+    private final boolean hilo;
+    private final int blockSize;
+
+    private volatile Block block = new Block(0, 0);
+
+    IdAllocator(String query, boolean hilo, int blockSize) {
+        this.query = query;
+        this.hilo = hilo;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @Description 分配一个主键
+     * @param conn 当前段用完时执行预留查询的连接
+     */
+    long next(Connection conn) throws SQLException {
+        for (;;) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id < current.end) return id;
+            refill(current, conn);
+        }
+    }
+
+    private synchronized void refill(Block exhausted, Connection conn) throws SQLException {
+        // 其他线程已经换了新的段
+        if (block != exhausted) return;
+        long value;
+        try (PreparedStatement pst = conn.prepareStatement(query);
+             ResultSet rs = pst.executeQuery()) {
+            if (!rs.next()) throw new SQLException("@GeneratedId 的查询没有返回结果: " + query);
+            value = rs.getLong(1);
+        }
+        long start = hilo ? Math.multiplyExact(value, (long) blockSize) : value;
+        // 0 表示未设置主键, 不分配
+        block = new Block(start == 0 ? 1 : start, Math.addExact(start, blockSize));
+    }
+
+    private static final class Block {
+
+        private final AtomicLong next;
+        private final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package cn.momoky.sql;
+
+import java.util.Iterator;
+
+/**
+ * @ClassName Invocation
+ * @Description 一次 Mapper 方法调用的耗时和结果, 只在开启指标采集时创建, 调用结束后交给每个 MetricsCollector.
+ *              各阶段耗时单位为纳秒, 命中查询缓存或返回游标时未经过的阶段为 0
+ * @Author 钟智峰
+ * @Date 2020/9/22 10:05
+ * @Version 1.0
+ */
+public final class Invocation {
+
+    private final String methodName;
+    // 实际执行的 SQL, 动态 SQL 在确定形状后替换为展开后的 SQL
+    String sql;
+    private final ParamBinder[] binders;
+    private final Object[] args;
+    // 批量方法中集合参数的下标, -1 表示不是批量方法
+    private final int batchIndex;
+    private final long startNanos;
+
+    long acquireNanos;
+    long bindNanos;
+    long executeNanos;
+    long mappingNanos;
+    long totalNanos;
+    long rows;
+    boolean cacheHit;
+    Throwable error;
+
+    // 上一阶段结束的时间
+    private long mark;
+
+    Invocation(String methodName, String sql, ParamBinder[] binders, Object[] args, int batchIndex) {
+        this.methodName = methodName;
+        this.sql = sql;
+        this.binders = binders;
+        this.args = args;
+        this.batchIndex = batchIndex;
+        this.startNanos = System.nanoTime();
+    }
+
+    // 开始访问数据库
+    void start() {
+        cacheHit = false;
+        mark = System.nanoTime();
+    }
+
+    // 以下在各阶段结束时调用, 耗时累加到对应阶段, 批量方法每行和每批都会调用
+    void acquired() {
+        acquireNanos += lap();
+    }
+
+    void bound() {
+        bindNanos += lap();
+    }
+
+    void executed() {
+        executeNanos += lap();
+    }
+
+    void mapped() {
+        mappingNanos += lap();
+    }
+
+    private long lap() {
+        long now = System.nanoTime();
+        long elapsed = now - mark;
+        mark = now;
+        return elapsed;
+    }
+
+    void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @Description Mapper 类名.方法名, 重载的方法加上参数类型, 如 UserMapper.find(long,String)
+     */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @Description 按 #{...} 标签顺序取得绑定的参数值, 每次调用重新计算, 只应在需要时调用
+     * @return 参数值, 批量方法为集合中第一个元素绑定的值
+     */
+    public Object[] getParameters() {
+        Object[] args = this.args;
+        if (batchIndex >= 0 && args[batchIndex] instanceof Iterable) {
+            Object first = null;
+            try {
+                Iterator<?> it = ((Iterable<?>) args[batchIndex]).iterator();
+                if (it.hasNext()) first = it.next();
+            } catch (RuntimeException ignored) {
+                // 只能遍历一次的 Iterable
+            }
+            args = args.clone();
+            args[batchIndex] = first;
+        }
+        Object[] values = new Object[binders.length];
+        for (int i = 0; i < binders.length; i++) {
+            try {
+                values[i] = binders[i].value(args);
+            } catch (RuntimeException e) {
+                values[i] = "<" + e + ">";
+            }
+        }
+        return values;
+    }
+
+    // 从连接池或事务取得连接的耗时
+    public long getAcquireNanos() {
+        return acquireNanos;
+    }
+
+    // 准备语句和绑定参数的耗时
+    public long getBindNanos() {
+        return bindNanos;
+    }
+
+    // 数据库执行语句的耗时
+    public long getExecuteNanos() {
+        return executeNanos;
+    }
+
+    // 将结果集映射为返回值的耗时
+    public long getMappingNanos() {
+        return mappingNanos;
+    }
+
+    // 整个方法调用的耗时, 包括缓存和事务的处理
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @Description 查询返回的行数, 写操作为影响的行数, 游标和命中缓存时为 0
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @Description 是否命中查询缓存, 命中时没有访问数据库
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * @Description 调用失败时的异常, 包括未在事务中时只打印堆栈的 SQLException
+     */
+    public Throwable getError() {
+        return error;
+    }
+}
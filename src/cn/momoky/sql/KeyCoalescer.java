@@ -0,0 +1,159 @@
+package cn.momoky.sql;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * @ClassName KeyCoalescer
+ * @Description 收集一个 @Coalesce 方法在时间窗口内的调用, 按键去重后交给 loader 一次查询, 再按键分发结果.
+ *              窗口从一批中的第一次调用开始计时, 到期或键数达到上限时在线程池中查询, 计时线程不访问数据库.
+ *              整数键统一为 Long 比较, 使 int 参数能匹配数据库返回的 Long/BigDecimal. 相同键的调用得到同一个 Bean/Map,
+ *              返回 List 时每个调用得到各自的副本
+ * @Author 钟智峰
+ * @Date 2020/9/27 10:00
+ * @Version 1.0
+ */
+final class KeyCoalescer {
+
+    // 按键集合查询, 返回全部行
+    private final Function<List<Object>, List<?>> loader;
+    // 取得行对应的键
+    private final Function<Object, Object> keyOf;
+    // 方法返回 List 时每个键得到全部行
+    private final boolean many;
+    private final long window;
+    private final int maxKeys;
+    private final Executor executor;
+
+    // 正在收集的一批调用
+    private Batch pending;
+
+    KeyCoalescer(Function<List<Object>, List<?>> loader, Function<Object, Object> keyOf, boolean many,
+                 long window, int maxKeys, Executor executor) {
+        this.loader = loader;
+        this.keyOf = keyOf;
+        this.many = many;
+        this.window = window;
+        this.maxKeys = maxKeys;
+        this.executor = executor;
+    }
+
+    /**
+     * @Description 加入当前批次, 查询完成时返回的 Future 完成
+     * @param key 方法的参数
+     * @return 该键的第一行或全部行, 没有结果时为 null 或空 List
+     */
+    CompletableFuture<Object> load(Object key) {
+        if (key == null) return CompletableFuture.completedFuture(many ? new ArrayList<>() : null);
+        Object normalized = normalize(key);
+        CompletableFuture<Object> future;
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = pending;
+            if (batch == null) {
+                batch = pending = new Batch();
+                Batch scheduled = batch;
+                Timer.INSTANCE.schedule(() -> flush(scheduled), window, TimeUnit.MILLISECONDS);
+            }
+            future = batch.futures.computeIfAbsent(normalized, k -> new CompletableFuture<>());
+            if (batch.futures.size() >= maxKeys) {
+                full = batch;
+                pending = null;
+            }
+        }
+        if (full != null) dispatch(full);
+        // 相同键的调用共用一个 Future, List 复制后再交给调用方, 以免一个调用方修改其他调用方的结果
+        return many ? future.thenApply(result -> new ArrayList<>((List<?>) result)) : future;
+    }
+
+    // 窗口到期, 已因键数达到上限查询过的批次不再处理
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (pending != batch) return;
+            pending = null;
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(Batch batch) {
+        try {
+            executor.execute(() -> run(batch));
+        } catch (RuntimeException e) {
+            fail(batch, e);
+        }
+    }
+
+    private void run(Batch batch) {
+        try {
+            List<?> rows = loader.apply(new ArrayList<>(batch.futures.keySet()));
+            Map<Object, Object> results = new HashMap<>();
+            if (rows != null) {
+                for (Object row : rows) {
+                    Object key = normalize(keyOf.apply(row));
+                    if (!many) {
+                        results.putIfAbsent(key, row);
+                        continue;
+                    }
+                    @SuppressWarnings("unchecked")
+                    List<Object> list = (List<Object>) results.computeIfAbsent(key, k -> new ArrayList<>());
+                    list.add(row);
+                }
+            }
+            for (Map.Entry<Object, CompletableFuture<Object>> entry : batch.futures.entrySet()) {
+                Object result = results.get(entry.getKey());
+                entry.getValue().complete(result == null && many ? new ArrayList<>() : result);
+            }
+        } catch (Throwable e) {
+            fail(batch, e);
+        }
+    }
+
+    private static void fail(Batch batch, Throwable e) {
+        for (CompletableFuture<Object> future : batch.futures.values()) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static Object normalize(Object key) {
+        if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        if (key instanceof BigInteger && ((BigInteger) key).bitLength() < 64) {
+            return ((BigInteger) key).longValue();
+        }
+        if (key instanceof BigDecimal) {
+            try {
+                return ((BigDecimal) key).longValueExact();
+            } catch (ArithmeticException e) {
+                return ((BigDecimal) key).stripTrailingZeros();
+            }
+        }
+        return key;
+    }
+
+    private static final class Batch {
+        // 键 - 等待该键结果的调用, 保持加入的顺序
+        private final Map<Object, CompletableFuture<Object>> futures = new LinkedHashMap<>();
+    }
+
+    // 所有工厂共用的计时线程, 第一次合并调用时创建
+    private static final class Timer {
+
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sql-mapper-coalesce");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package cn.momoky.sql;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @ClassName LatencyHistogram
+ * @Description 无锁的对数线性直方图, 与 HdrHistogram 的分桶方式相同: 每个 2 的幂区间再等分为 16 个子桶,
+ *              相对误差不超过 1/16, 记录一次只需一次原子自增, 不分配对象
+ * @Author 钟智峰
+ * @Date 2020/9/22 09:40
+ * @Version 1.0
+ */
+public final class LatencyHistogram {
+
+    // 每个 2 的幂区间的子桶数为 2^SUB_BITS
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // 小于 2 * SUB_COUNT 的值每个值一个桶, 之后每个 2 的幂区间 SUB_COUNT 个桶
+    private static final int BUCKETS = 2 * SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    /**
+     * @Description 记录一个值, 负数按 0 记录
+     * @param value 纳秒等非负整数
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long m = max;
+        // max 只增不减, 竞争时偶尔丢失一次更新可以接受
+        if (value > m) max = value;
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_COUNT) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_COUNT;
+        return 2 * SUB_COUNT + (shift - 1) * SUB_COUNT + sub;
+    }
+
+    // 桶中值的上界
+    static long valueOf(int index) {
+        if (index < 2 * SUB_COUNT) return index;
+        int shift = (index - 2 * SUB_COUNT) / SUB_COUNT + 1;
+        long sub = (index - 2 * SUB_COUNT) % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @Description 估算百分位数, 返回所在桶的上界, 不超过记录过的最大值
+     * @param percentile 0 到 100 之间
+     * @return 百分位数, 没有记录时返回 0
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        if (rank == 0) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(valueOf(i), max);
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max = 0;
+    }
+}
@@ -0,0 +1,225 @@
+package cn.momoky.sql;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * @ClassName Lobs
+ * @Description 大字段的流式读写: 参数为 InputStream/Reader/Path/ByteBuffer 时用 setBinaryStream/setCharacterStream 绑定,
+ *              结果列可以读为 InputStream/Reader/ReadableByteChannel, 或直接写入调用方传入的 OutputStream/Writer/WritableByteChannel,
+ *              整个过程不在内存中生成完整的 byte[] 或 String
+ * @Author 钟智峰
+ * @Date 2020/9/26 10:10
+ * @Version 1.0
+ */
+final class Lobs {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private Lobs() {
+    }
+
+    /**
+     * @Description 是否按流绑定的参数类型
+     */
+    static boolean isSource(Class<?> type) {
+        return InputStream.class.isAssignableFrom(type) || Reader.class.isAssignableFrom(type)
+                || Path.class.isAssignableFrom(type) || ByteBuffer.class.isAssignableFrom(type);
+    }
+
+    /**
+     * @Description 是否按流读取的结果类型, 只在结果集定位在该行时有效
+     */
+    static boolean isStream(Class<?> type) {
+        return type == InputStream.class || type == Reader.class || type == ReadableByteChannel.class;
+    }
+
+    /**
+     * @Description 是否接收查询结果的输出参数类型
+     */
+    static boolean isSink(Class<?> type) {
+        return OutputStream.class.isAssignableFrom(type) || Writer.class.isAssignableFrom(type)
+                || WritableByteChannel.class.isAssignableFrom(type);
+    }
+
+    /**
+     * @Description 按流绑定的参数为 null 时的 SQL 类型: Reader 为 LONGVARCHAR, 其他为 LONGVARBINARY
+     * @param type 参数的声明类型
+     */
+    static int nullType(Class<?> type) {
+        return Reader.class.isAssignableFrom(type) ? Types.LONGVARCHAR : Types.LONGVARBINARY;
+    }
+
+    /**
+     * @Description 按流绑定参数, Path 在驱动读取时才打开文件, 读完文件长度的字节后关闭; ByteBuffer 读取其副本, 不改变原来的 position
+     * @param nullType 值为 null 时绑定的 SQL 类型, 见 nullType(Class)
+     */
+    static void bind(PreparedStatement pst, int index, Object value, int nullType) throws SQLException {
+        if (value == null) {
+            pst.setNull(index, nullType);
+        } else if (value instanceof InputStream) {
+            pst.setBinaryStream(index, (InputStream) value);
+        } else if (value instanceof Reader) {
+            pst.setCharacterStream(index, (Reader) value);
+        } else if (value instanceof Path) {
+            Path path = (Path) value;
+            try {
+                long length = Files.size(path);
+                pst.setBinaryStream(index, new FileStream(path, length), length);
+            } catch (IOException e) {
+                throw new SQLException("无法读取文件 " + path, e);
+            }
+        } else if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            pst.setBinaryStream(index, new ByteBufferStream(buffer), buffer.remaining());
+        } else {
+            pst.setObject(index, value);
+        }
+    }
+
+    /**
+     * @Description 按流读取当前行的列
+     * @param type InputStream, Reader 或 ReadableByteChannel
+     */
+    static Object read(ResultSet rs, int column, Class<?> type) throws SQLException {
+        if (type == Reader.class) return rs.getCharacterStream(column);
+        InputStream in = rs.getBinaryStream(column);
+        if (type == ReadableByteChannel.class) return in == null ? null : Channels.newChannel(in);
+        return in;
+    }
+
+    /**
+     * @Description 将当前行的列写入输出参数, 不关闭输出参数
+     * @return 写入的字节数, Writer 为字符数
+     */
+    static long write(ResultSet rs, int column, Object sink) throws SQLException {
+        try {
+            if (sink instanceof Writer) {
+                try (Reader reader = rs.getCharacterStream(column)) {
+                    return reader == null ? 0 : copy(reader, (Writer) sink);
+                }
+            }
+            try (InputStream in = rs.getBinaryStream(column)) {
+                if (in == null) return 0;
+                OutputStream out = sink instanceof OutputStream
+                        ? (OutputStream) sink : Channels.newOutputStream((WritableByteChannel) sink);
+                return copy(in, out);
+            }
+        } catch (IOException e) {
+            throw new SQLException("写入大字段失败", e);
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private static long copy(Reader in, Writer out) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    // 第一次读取时打开文件, 读完声明的长度或读到末尾时关闭. 驱动按长度读取, 通常不会再读一次得到 -1;
+    // 没有开始读取时不打开文件, 语句执行失败时不会留下打开的文件
+    private static final class FileStream extends InputStream {
+
+        private final Path path;
+        // 尚未读取的字节数
+        private long remaining;
+        private InputStream in;
+        private boolean eof;
+
+        FileStream(Path path, long length) {
+            this.path = path;
+            this.remaining = length;
+        }
+
+        private InputStream in() throws IOException {
+            if (in == null) in = new FileInputStream(path.toFile());
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (eof || remaining <= 0) {
+                close();
+                return -1;
+            }
+            int b = in().read();
+            if (b < 0 || --remaining == 0) close();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (eof || remaining <= 0) {
+                close();
+                return -1;
+            }
+            int n = in().read(b, off, (int) Math.min(len, remaining));
+            if (n < 0 || (remaining -= n) == 0) close();
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            eof = true;
+            if (in != null) in.close();
+        }
+    }
+
+    private static final class ByteBufferStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
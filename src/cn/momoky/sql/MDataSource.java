@@ -3,13 +3,26 @@ package cn.momoky.sql;
 import javax.sql.DataSource;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
-import java.util.Stack;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 /**
@@ -19,55 +32,423 @@ import java.util.logging.Logger;
  * @Date 2020/9/8 13:23
  * @Version 1.0
  */
-public class MDataSource implements DataSource {
+public class MDataSource implements DataSource, MDataSourceMXBean, AutoCloseable {
 
     private final String driver;
     private final String url;
     private final String user;
     private final String password;
 
-    private final Stack<Connection> connectionPool = new Stack<>();
+    private final PoolConfig config;
+
+    // 空闲连接, 后进先出, 优先复用最近归还的连接
+    private final ConcurrentLinkedDeque<PooledConnection> idleConnections = new ConcurrentLinkedDeque<>();
+    // 借出许可, 数量即 maxSize, 借出连接时获取, 归还时释放
+    private final Semaphore permits;
+    // 当前物理连接数
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    // 预编译语句缓存命中/未命中次数
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed = false;
 
     public MDataSource(String driver, String url, String user, String password) {
+        this(driver, url, user, password, new PoolConfig());
+    }
+
+    public MDataSource(String driver, String url, String user, String password, PoolConfig config) {
         this.driver = driver;
         this.url = url;
         this.user = user;
         this.password = password;
+        this.config = config;
+        config.check();
+
+        this.permits = new Semaphore(config.getMaxSize(), true);
+
+        try {
+            Class.forName(driver);
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+
+        fillPool();
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sql-mapper-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = config.getHousekeepingPeriod();
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public Connection getConnection() throws SQLException {
-        if (connectionPool.isEmpty()) {
-            connectionPool.push(createProxy(createConnection()));
+        if (closed) throw new SQLException("连接池已关闭");
+
+        long timeout = config.getBorrowTimeout();
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("获取连接超时, 等待 " + timeout + "ms, 当前连接数 " + totalConnections.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("获取连接时被中断", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idleConnections.pollFirst()) != null) {
+                if (isUsable(pooled)) return pooled.borrow();
+                retire(pooled);
+            }
+            pooled = createConnection();
+            return pooled.borrow();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
         }
-        return connectionPool.pop();
     }
 
-    private Connection createConnection() throws SQLException {
+    private PooledConnection createConnection() throws SQLException {
+        totalConnections.incrementAndGet();
         try {
-            Class.forName(driver);
-        } catch (ClassNotFoundException e) {
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException | RuntimeException e) {
+            totalConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    // 借出前检查连接是否过期以及是否仍然可用
+    private boolean isUsable(PooledConnection pooled) {
+        long now = System.currentTimeMillis();
+        if (isExpired(pooled, now)) return false;
+        // 刚归还的连接大概率仍然可用, 校验本身需要一次往返
+        if (!config.isValidateOnBorrow() || now - pooled.lastUsedAt < config.getValidationInterval()) return true;
+        try {
+            return pooled.connection.isValid(config.getValidationTimeout());
+        } catch (SQLException throwables) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(PooledConnection pooled, long now) {
+        long maxLifetime = config.getMaxLifetime();
+        return maxLifetime > 0 && now - pooled.createdAt >= maxLifetime;
+    }
+
+    // 归还连接, 还原事务状态后放回空闲队列
+    private void release(PooledConnection pooled) {
+        try {
+            if (closed || isExpired(pooled, System.currentTimeMillis()) || !reset(pooled)) {
+                retire(pooled);
+            } else {
+                pooled.lastUsedAt = System.currentTimeMillis();
+                idleConnections.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean reset(PooledConnection pooled) {
+        Connection conn = pooled.connection;
+        try {
+            if (conn.isClosed()) return false;
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException throwables) {
+            return false;
+        }
+    }
+
+    // 关闭物理连接
+    private void retire(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        try {
+            pooled.connection.close();
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+    }
+
+    // 回收空闲过久和超过最长存活时间的连接, 并补足 minSize
+    private void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+            long idleTimeout = config.getIdleTimeout();
+            for (PooledConnection pooled : idleConnections) {
+                boolean idleTooLong = idleTimeout > 0
+                        && now - pooled.lastUsedAt >= idleTimeout
+                        && totalConnections.get() > config.getMinSize();
+                if ((idleTooLong || isExpired(pooled, now)) && idleConnections.remove(pooled)) {
+                    retire(pooled);
+                }
+            }
+            fillPool();
+        } catch (RuntimeException e) {
             e.printStackTrace();
         }
+    }
+
+    // 预热连接, 使物理连接数不少于 minSize
+    private void fillPool() {
+        while (!closed && totalConnections.get() < config.getMinSize()) {
+            try {
+                PooledConnection pooled = createConnection();
+                if (totalConnections.get() > config.getMaxSize()) {
+                    retire(pooled);
+                    return;
+                }
+                idleConnections.offerLast(pooled);
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    public PoolConfig getConfig() {
+        return config;
+    }
+
+    // 当前物理连接数
+    @Override
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    // 当前空闲连接数
+    @Override
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    // 当前借出的连接数
+    @Override
+    public int getActiveConnections() {
+        return config.getMaxSize() - permits.availablePermits();
+    }
+
+    // 正在等待获取连接的线程数
+    @Override
+    public int getWaitingThreads() {
+        return permits.getQueueLength();
+    }
+
+    // 预编译语句缓存命中次数
+    @Override
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    // 预编译语句缓存未命中次数
+    @Override
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
 
-        return DriverManager.getConnection(url, user, password);
+    /**
+     * @Description 关闭连接池, 关闭所有空闲连接, 借出中的连接在归还时关闭
+     */
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idleConnections.pollFirst()) != null) {
+            retire(pooled);
+        }
     }
 
+    private class PooledConnection {
+
+        private final Connection connection;
+        private final long createdAt;
+        private volatile long lastUsedAt;
+        // 当前借出的租约, 未借出时为 null. 每次借出创建新的代理, 上一次借出的代理即使连接再次借出也不能使用
+        private volatile Lease lease;
+        // 空闲的预编译语句, 按访问顺序淘汰; 游标和 Publisher 可能在其他线程关闭语句, 读写时锁住本对象
+        private final Map<StatementKey, PreparedStatement> statementCache;
 
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsedAt = createdAt;
+            int cacheSize = config.getStatementCacheSize();
+            this.statementCache = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+                    if (size() <= cacheSize) return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        // 借出连接, 返回本次借出的代理
+        synchronized Connection borrow() {
+            Lease next = new Lease();
+            lease = next;
+            return next.proxy;
+        }
+
+        // 结束租约, 只有当前租约第一次调用时返回 true
+        private synchronized boolean end(Lease ended) {
+            if (lease != ended) return false;
+            lease = null;
+            return true;
+        }
+
+        // 一次借出, 持有自己的代理
+        private final class Lease implements InvocationHandler {
+
+            private final Connection proxy = (Connection) Proxy.newProxyInstance(MDataSource.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, this);
 
-    private Connection createProxy(Connection conn) {
-        return (Connection) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
             @Override
             public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-
-                if (method.getName().equals("close")) {
-                    connectionPool.push((Connection) proxy);
+                String name = method.getName();
+                if (name.equals("close")) {
+                    if (end(this)) release(PooledConnection.this);
                     return null;
                 }
+                if (name.equals("isClosed")) {
+                    return lease != this || connection.isClosed();
+                }
+                if (name.equals("equals")) return proxy == args[0];
+                if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                if (name.equals("toString")) return "Pooled" + connection;
+                if (lease != this) throw new SQLException("连接已归还到连接池");
+
+                if (name.equals("prepareStatement") && config.getStatementCacheSize() > 0) {
+                    Class<?>[] types = method.getParameterTypes();
+                    if (types.length == 1) {
+                        return prepareCached(this, new StatementKey((String) args[0], Statement.NO_GENERATED_KEYS));
+                    }
+                    if (types.length == 2 && types[1] == int.class) {
+                        return prepareCached(this, new StatementKey((String) args[0], (Integer) args[1]));
+                    }
+                }
 
-                return method.invoke(conn, args);
+                try {
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
             }
-        });
+        }
+
+        // 从缓存取出语句, 取出后语句不在缓存中, close 时再放回
+        private PreparedStatement prepareCached(Lease owner, StatementKey key) throws SQLException {
+            PreparedStatement statement;
+            synchronized (this) {
+                statement = statementCache.remove(key);
+            }
+            if (statement != null && !statement.isClosed()) {
+                statementCacheHits.increment();
+            } else {
+                statementCacheMisses.increment();
+                statement = key.autoGeneratedKeys == Statement.NO_GENERATED_KEYS
+                        ? connection.prepareStatement(key.sql)
+                        : connection.prepareStatement(key.sql, key.autoGeneratedKeys);
+            }
+            return createStatementProxy(owner, key, statement, statement.getFetchSize());
+        }
+
+        // fetchSize 为取出时的值, 放回缓存的语句都已恢复为驱动的默认值
+        private PreparedStatement createStatementProxy(Lease owner, StatementKey key, PreparedStatement statement, int fetchSize) {
+            AtomicBoolean open = new AtomicBoolean(true);
+            return (PreparedStatement) Proxy.newProxyInstance(MDataSource.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object stmtProxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("close")) {
+                        if (open.compareAndSet(true, false)) returnStatement(owner, key, statement, fetchSize);
+                        return null;
+                    }
+                    if (name.equals("isClosed")) return !open.get();
+                    if (name.equals("getConnection")) return owner.proxy;
+                    if (name.equals("equals")) return stmtProxy == args[0];
+                    if (name.equals("hashCode")) return System.identityHashCode(stmtProxy);
+                    if (name.equals("toString")) return "Cached" + statement;
+                    if (!open.get()) throw new SQLException("PreparedStatement 已关闭");
+                    if (lease != owner) throw new SQLException("连接已归还到连接池");
+
+                    try {
+                        return method.invoke(statement, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getTargetException();
+                    }
+                }
+            });
+        }
+
+        // 清理参数和未执行的批量并恢复 fetchSize 后放回缓存, 租约已结束或同一 SQL 已有空闲语句时直接关闭
+        private void returnStatement(Lease owner, StatementKey key, PreparedStatement statement, int fetchSize) {
+            try {
+                if (statement.isClosed()) return;
+                statement.clearParameters();
+                // executeBatch 中途失败时已 addBatch 的行仍留在语句上, 不能带给下一个使用者
+                statement.clearBatch();
+                statement.clearWarnings();
+                // 使用同一 SQL 的其他方法不应继承本次设置的 fetchSize
+                if (statement.getFetchSize() != fetchSize) statement.setFetchSize(fetchSize);
+            } catch (SQLException throwables) {
+                closeQuietly(statement);
+                return;
+            }
+            synchronized (this) {
+                if (lease == owner && !statementCache.containsKey(key)) {
+                    statementCache.put(key, statement);
+                    return;
+                }
+            }
+            closeQuietly(statement);
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+    }
+
+    // 语句缓存的键: SQL 文本 + 是否返回自增主键
+    private static final class StatementKey {
+
+        private final String sql;
+        private final int autoGeneratedKeys;
+        private final int hash;
+
+        StatementKey(String sql, int autoGeneratedKeys) {
+            this.sql = sql;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.hash = 31 * sql.hashCode() + autoGeneratedKeys;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof StatementKey)) return false;
+            StatementKey other = (StatementKey) o;
+            return autoGeneratedKeys == other.autoGeneratedKeys && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 
     @Override
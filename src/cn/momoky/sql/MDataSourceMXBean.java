@@ -0,0 +1,23 @@
+package cn.momoky.sql;
+
+/**
+ * @ClassName MDataSourceMXBean
+ * @Description 连接池的实时状态, 开启 metrics.jmx 时以 cn.momoky.sql:type=MDataSource 注册到 JMX
+ * @Author 钟智峰
+ * @Date 2020/9/22 11:50
+ * @Version 1.0
+ */
+public interface MDataSourceMXBean {
+
+    int getTotalConnections();
+
+    int getIdleConnections();
+
+    int getActiveConnections();
+
+    int getWaitingThreads();
+
+    long getStatementCacheHits();
+
+    long getStatementCacheMisses();
+}
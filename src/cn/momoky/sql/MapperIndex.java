@@ -0,0 +1,54 @@
+package cn.momoky.sql;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @ClassName MapperIndex
+ * @Description 读取编译期生成的 META-INF/sql-mapper.index, 每行为 Mapper 接口名=生成的实现类名,
+ *              SqlMapperFactoryBuilder 不再扫描自带索引的目录和 jar 包, SqlMapperFactory 直接实例化生成的实现类
+ * @Author 钟智峰
+ * @Date 2020/9/20 14:30
+ * @Version 1.0
+ */
+final class MapperIndex {
+
+    static final String LOCATION = "META-INF/sql-mapper.index";
+
+    private MapperIndex() {
+    }
+
+    /**
+     * @Description 合并类路径上所有的索引文件
+     * @param loader 类加载器
+     * @return Mapper 接口名 - 实现类名, 没有生成实现类的接口对应 null
+     */
+    static Map<String, String> load(ClassLoader loader) {
+        Map<String, String> index = new LinkedHashMap<>();
+        try {
+            Enumeration<URL> resources = loader.getResources(LOCATION);
+            while (resources.hasMoreElements()) {
+                URL url = resources.nextElement();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) continue;
+                        int eq = line.indexOf('=');
+                        if (eq < 0) index.put(line, null);
+                        else index.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return index;
+    }
+}
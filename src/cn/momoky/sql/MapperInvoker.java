@@ -0,0 +1,15 @@
+package cn.momoky.sql;
+
+/**
+ * @ClassName MapperInvoker
+ * @Description 编译期生成的 Mapper 实现类通过它执行方法, methodIndex 为方法在生成类 methods() 中的下标
+ * @Author 钟智峰
+ * @Date 2020/9/20 14:30
+ * @Version 1.0
+ */
+@FunctionalInterface
+public interface MapperInvoker {
+
+    Object invoke(int methodIndex, Object[] args);
+
+}
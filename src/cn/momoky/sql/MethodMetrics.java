@@ -0,0 +1,155 @@
+package cn.momoky.sql;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @ClassName MethodMetrics
+ * @Description 单个 Mapper 方法的调用次数、错误数、返回行数以及总耗时和各阶段耗时的直方图
+ * @Author 钟智峰
+ * @Date 2020/9/22 10:25
+ * @Version 1.0
+ */
+public final class MethodMetrics implements MethodMetricsMXBean {
+
+    private final String methodName;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram acquire = new LatencyHistogram();
+    private final LatencyHistogram bind = new LatencyHistogram();
+    private final LatencyHistogram execute = new LatencyHistogram();
+    private final LatencyHistogram mapping = new LatencyHistogram();
+
+    MethodMetrics(String methodName) {
+        this.methodName = methodName;
+    }
+
+    void record(Invocation invocation) {
+        calls.increment();
+        if (invocation.error != null) errors.increment();
+        rows.add(invocation.rows);
+        total.record(invocation.totalNanos);
+        // 命中缓存时没有访问数据库, 不计入各阶段的直方图
+        if (invocation.cacheHit) {
+            cacheHits.increment();
+            return;
+        }
+        acquire.record(invocation.acquireNanos);
+        bind.record(invocation.bindNanos);
+        execute.record(invocation.executeNanos);
+        mapping.record(invocation.mappingNanos);
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    // 整个调用的耗时(纳秒)
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    // 获取连接的耗时(纳秒)
+    public LatencyHistogram getAcquire() {
+        return acquire;
+    }
+
+    // 绑定参数的耗时(纳秒)
+    public LatencyHistogram getBind() {
+        return bind;
+    }
+
+    // 执行语句的耗时(纳秒)
+    public LatencyHistogram getExecute() {
+        return execute;
+    }
+
+    // 映射结果的耗时(纳秒)
+    public LatencyHistogram getMapping() {
+        return mapping;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getRows() {
+        return rows.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return total.getMean() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return total.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+        return total.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return total.getMax() / 1000;
+    }
+
+    @Override
+    public long getAcquireP99Micros() {
+        return acquire.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getBindP99Micros() {
+        return bind.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getExecuteP99Micros() {
+        return execute.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getMappingP99Micros() {
+        return mapping.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        errors.reset();
+        cacheHits.reset();
+        rows.reset();
+        total.reset();
+        acquire.reset();
+        bind.reset();
+        execute.reset();
+        mapping.reset();
+    }
+
+    @Override
+    public String toString() {
+        return methodName + "[calls=" + getCalls() + ", errors=" + getErrors() + ", cacheHits=" + getCacheHits()
+                + ", rows=" + getRows() + ", mean=" + String.format("%.1f", getMeanMicros()) + "us, p50=" + getP50Micros()
+                + "us, p99=" + getP99Micros() + "us, max=" + getMaxMicros() + "us]";
+    }
+}
@@ -0,0 +1,37 @@
+package cn.momoky.sql;
+
+/**
+ * @ClassName MethodMetricsMXBean
+ * @Description 单个 Mapper 方法的指标, 开启 metrics.jmx 时以 cn.momoky.sql:type=MapperMethod 注册到 JMX, 耗时单位为微秒
+ * @Author 钟智峰
+ * @Date 2020/9/22 10:30
+ * @Version 1.0
+ */
+public interface MethodMetricsMXBean {
+
+    long getCalls();
+
+    long getErrors();
+
+    long getCacheHits();
+
+    long getRows();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+
+    long getAcquireP99Micros();
+
+    long getBindP99Micros();
+
+    long getExecuteP99Micros();
+
+    long getMappingP99Micros();
+
+    void reset();
+}
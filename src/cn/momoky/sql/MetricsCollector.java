@@ -0,0 +1,18 @@
+package cn.momoky.sql;
+
+/**
+ * @ClassName MetricsCollector
+ * @Description Mapper 方法调用的指标采集接口, 通过 metrics.collectors 配置类名或调用
+ *              SqlMapperFactory.addMetricsCollector 注册. 在调用 Mapper 方法的线程中同步回调, 实现应尽快返回且不抛出异常
+ * @Author 钟智峰
+ * @Date 2020/9/22 10:00
+ * @Version 1.0
+ */
+public interface MetricsCollector {
+
+    /**
+     * @Description Mapper 方法调用结束时回调, 包括失败的调用
+     * @param invocation 本次调用的耗时和结果, 回调返回后不应再持有
+     */
+    void record(Invocation invocation);
+}
@@ -0,0 +1,88 @@
+package cn.momoky.sql;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @ClassName MetricsRegistry
+ * @Description 默认的指标采集器, 在内存中按 Mapper 类名.方法名 汇总 MethodMetrics, 开启 metrics.jmx 时同时注册到 JMX
+ * @Author 钟智峰
+ * @Date 2020/9/22 10:45
+ * @Version 1.0
+ */
+public final class MetricsRegistry implements MetricsCollector {
+
+    static final String DOMAIN = "cn.momoky.sql";
+
+    // Mapper 类名.方法名 - 指标
+    private final Map<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+    private final boolean jmx;
+
+    public MetricsRegistry(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    @Override
+    public void record(Invocation invocation) {
+        String methodName = invocation.getMethodName();
+        MethodMetrics metrics = methods.get(methodName);
+        if (metrics == null) metrics = methods.computeIfAbsent(methodName, this::create);
+        metrics.record(invocation);
+    }
+
+    private MethodMetrics create(String methodName) {
+        MethodMetrics metrics = new MethodMetrics(methodName);
+        if (jmx) {
+            int dot = methodName.lastIndexOf('.');
+            register("type=MapperMethod,mapper=" + ObjectName.quote(methodName.substring(0, dot))
+                    + ",method=" + ObjectName.quote(methodName.substring(dot + 1)), metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @Description 取得方法的指标
+     * @param methodName Mapper 类名.方法名
+     * @return 指标, 方法还未被调用过时返回 null
+     */
+    public MethodMetrics getMethodMetrics(String methodName) {
+        return methods.get(methodName);
+    }
+
+    public Collection<MethodMetrics> getAllMethodMetrics() {
+        return Collections.unmodifiableCollection(methods.values());
+    }
+
+    public void reset() {
+        for (MethodMetrics metrics : methods.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * @Description 以 cn.momoky.sql:<properties> 注册 MBean, 同名的 MBean 已存在时在名称后追加序号
+     * @param properties ObjectName 的属性部分, 如 type=MDataSource,name=default
+     * @param mbean MBean 对象
+     * @return 实际注册的名称, 注册失败时返回 null
+     */
+    static ObjectName register(String properties, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            for (int i = 2; server.isRegistered(name); i++) {
+                name = new ObjectName(DOMAIN + ":" + properties + ",instance=" + i);
+            }
+            server.registerMBean(mbean, name);
+            return name;
+        } catch (JMException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package cn.momoky.sql;
+
+import cn.momoky.util.BeanUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * @ClassName ParamBinder
+ * @Description 预编译的 #{...} 参数绑定器, 解析 Mapper 方法时为每个标签生成一次,
+ *              执行时按参数下标和缓存的 getter 取值, 不再拆分标签或反射查找方法
+ * @Author 钟智峰
+ * @Date 2020/9/13 16:40
+ * @Version 1.0
+ */
+abstract class ParamBinder {
+
+    private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+
+    // 参数在方法参数列表中的下标
+    private final int argIndex;
+    // 从参数到叶子属性所在对象的 getter 链, 如 #{order.customer.id} 中的 customer
+    private final MethodHandle[] path;
+    // 叶子属性的 getter, 为 null 时直接绑定参数本身
+    private final MethodHandle leaf;
+    // 标签声明的类型, 即参数或叶子属性的类型
+    private Class<?> valueType;
+
+    ParamBinder(int argIndex, MethodHandle[] path, MethodHandle leaf) {
+        this.argIndex = argIndex;
+        this.path = path;
+        this.leaf = leaf;
+    }
+
+    /**
+     * @Description 将参数值绑定到 PreparedStatement 的第 index 个占位符
+     * @param pst 预编译语句
+     * @param index 占位符下标, 从 1 开始
+     * @param args Mapper 方法的实参
+     */
+    abstract void bind(PreparedStatement pst, int index, Object[] args) throws SQLException;
+
+    // 沿 getter 链取到叶子属性所在的对象, 中途遇到 null 时返回 null
+    final Object owner(Object[] args) {
+        Object o = args[argIndex];
+        try {
+            for (MethodHandle getter : path) {
+                if (o == null) return null;
+                o = (Object) getter.invokeExact(o);
+            }
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+        return o;
+    }
+
+    // 取叶子属性的值
+    final Object value(Object[] args) {
+        Object o = owner(args);
+        if (leaf == null || o == null) return o;
+        try {
+            return (Object) leaf.invokeExact(o);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    Class<?> valueType() {
+        return valueType;
+    }
+
+    // 声明类型为集合或数组(byte[] 除外)的标签, 在 SQL 中展开为多个占位符; Path 虽然是 Iterable, 按文件内容绑定
+    boolean isCollection() {
+        return (Iterable.class.isAssignableFrom(valueType) && !Path.class.isAssignableFrom(valueType))
+                || (valueType.isArray() && valueType != byte[].class);
+    }
+
+    static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new RuntimeException(e);
+    }
+
+    /**
+     * @Description 将 #{a.b.c} 标签编译为绑定器
+     * @param tag 标签内容, 如 order.customer.id
+     * @param argIndex 标签根参数的下标
+     * @param argType 标签根参数的类型
+     * @return 参数绑定器
+     */
+    static ParamBinder compile(String tag, int argIndex, Class<?> argType) {
+        String[] names = tag.split("\\.");
+        if (names.length == 1) {
+            ParamBinder binder = create(argIndex, new MethodHandle[0], null, argType);
+            binder.valueType = argType;
+            return binder;
+        }
+
+        Class<?> type = argType;
+        MethodHandle[] path = new MethodHandle[names.length - 2];
+        for (int i = 1; i < names.length - 1; i++) {
+            MethodHandle getter = BeanUtil.getterHandle(type, names[i]);
+            type = getter.type().returnType();
+            if (type.isPrimitive()) throw new RuntimeException(tag + " 中 " + names[i] + " 是基本类型, 无法继续取属性");
+            path[i - 1] = getter.asType(OBJECT_GETTER);
+        }
+        MethodHandle leaf = BeanUtil.getterHandle(type, names[names.length - 1]);
+        ParamBinder binder = create(argIndex, path, leaf, leaf.type().returnType());
+        binder.valueType = leaf.type().returnType();
+        return binder;
+    }
+
+    private static ParamBinder create(int argIndex, MethodHandle[] path, MethodHandle leaf, Class<?> valueType) {
+        MethodHandle boxedLeaf = leaf == null ? null : leaf.asType(OBJECT_GETTER);
+        if (valueType == int.class && leaf != null) {
+            return new IntBinder(argIndex, path, boxedLeaf, leaf.asType(MethodType.methodType(int.class, Object.class)));
+        }
+        if (valueType == int.class || valueType == Integer.class) {
+            return new IntBinder(argIndex, path, boxedLeaf, null);
+        }
+        if (valueType == long.class && leaf != null) {
+            return new LongBinder(argIndex, path, boxedLeaf, leaf.asType(MethodType.methodType(long.class, Object.class)));
+        }
+        if (valueType == long.class || valueType == Long.class) {
+            return new LongBinder(argIndex, path, boxedLeaf, null);
+        }
+        if (valueType == String.class) {
+            return new StringBinder(argIndex, path, boxedLeaf);
+        }
+        if (Lobs.isSource(valueType)) {
+            return new LobBinder(argIndex, path, boxedLeaf, Lobs.nullType(valueType));
+        }
+        return new ObjectBinder(argIndex, path, boxedLeaf);
+    }
+
+    private static final class ObjectBinder extends ParamBinder {
+
+        ObjectBinder(int argIndex, MethodHandle[] path, MethodHandle leaf) {
+            super(argIndex, path, leaf);
+        }
+
+        @Override
+        void bind(PreparedStatement pst, int index, Object[] args) throws SQLException {
+            pst.setObject(index, value(args));
+        }
+    }
+
+    // 声明类型为 InputStream/Reader/Path/ByteBuffer 的参数按流绑定
+    private static final class LobBinder extends ParamBinder {
+
+        // 值为 null 时绑定的 SQL 类型
+        private final int nullType;
+
+        LobBinder(int argIndex, MethodHandle[] path, MethodHandle leaf, int nullType) {
+            super(argIndex, path, leaf);
+            this.nullType = nullType;
+        }
+
+        @Override
+        void bind(PreparedStatement pst, int index, Object[] args) throws SQLException {
+            Lobs.bind(pst, index, value(args), nullType);
+        }
+    }
+
+    private static final class StringBinder extends ParamBinder {
+
+        StringBinder(int argIndex, MethodHandle[] path, MethodHandle leaf) {
+            super(argIndex, path, leaf);
+        }
+
+        @Override
+        void bind(PreparedStatement pst, int index, Object[] args) throws SQLException {
+            pst.setString(index, (String) value(args));
+        }
+    }
+
+    private static final class IntBinder extends ParamBinder {
+
+        // 叶子属性为 int 时直接取基本类型, 避免装箱
+        private final MethodHandle primitiveLeaf;
+
+        IntBinder(int argIndex, MethodHandle[] path, MethodHandle leaf, MethodHandle primitiveLeaf) {
+            super(argIndex, path, leaf);
+            this.primitiveLeaf = primitiveLeaf;
+        }
+
+        @Override
+        void bind(PreparedStatement pst, int index, Object[] args) throws SQLException {
+            if (primitiveLeaf != null) {
+                Object owner = owner(args);
+                if (owner == null) {
+                    pst.setNull(index, Types.INTEGER);
+                    return;
+                }
+                int value;
+                try {
+                    value = (int) primitiveLeaf.invokeExact(owner);
+                } catch (Throwable e) {
+                    throw propagate(e);
+                }
+                pst.setInt(index, value);
+                return;
+            }
+            Object value = value(args);
+            if (value == null) pst.setNull(index, Types.INTEGER);
+            else pst.setInt(index, (Integer) value);
+        }
+    }
+
+    private static final class LongBinder extends ParamBinder {
+
+        // 叶子属性为 long 时直接取基本类型, 避免装箱
+        private final MethodHandle primitiveLeaf;
+
+        LongBinder(int argIndex, MethodHandle[] path, MethodHandle leaf, MethodHandle primitiveLeaf) {
+            super(argIndex, path, leaf);
+            this.primitiveLeaf = primitiveLeaf;
+        }
+
+        @Override
+        void bind(PreparedStatement pst, int index, Object[] args) throws SQLException {
+            if (primitiveLeaf != null) {
+                Object owner = owner(args);
+                if (owner == null) {
+                    pst.setNull(index, Types.BIGINT);
+                    return;
+                }
+                long value;
+                try {
+                    value = (long) primitiveLeaf.invokeExact(owner);
+                } catch (Throwable e) {
+                    throw propagate(e);
+                }
+                pst.setLong(index, value);
+                return;
+            }
+            Object value = value(args);
+            if (value == null) pst.setNull(index, Types.BIGINT);
+            else pst.setLong(index, (Long) value);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package cn.momoky.sql;
+
+import java.util.Properties;
+
+/**
+ * @ClassName PoolConfig
+ * @Description 连接池配置, 从 SqlMapperFactoryBuilder 读取的 properties 文件中解析 pool.* 配置项
+ * @Author 钟智峰
+ * @Date 2020/9/12 10:20
+ * @Version 1.0
+ */
+public class PoolConfig {
+
+    // 最少保持的物理连接数, 启动时预热到该数量
+    private int minSize = 2;
+    // 最多允许的物理连接数
+    private int maxSize = 10;
+    // 获取连接时最长等待时间(毫秒)
+    private long borrowTimeout = 30_000;
+    // 空闲超过该时间(毫秒)的连接会被回收, 但不会低于 minSize
+    private long idleTimeout = 600_000;
+    // 连接最长存活时间(毫秒), 超过后在归还或借出时被退役, 0 表示不限制
+    private long maxLifetime = 1_800_000;
+    // 借出时是否校验连接
+    private boolean validateOnBorrow = true;
+    // 校验连接的超时时间(秒)
+    private int validationTimeout = 5;
+    // 归还后不超过该时间(毫秒)再次借出的连接不校验
+    private long validationInterval = 500;
+    // 后台维护线程的执行间隔(毫秒)
+    private long housekeepingPeriod = 30_000;
+    // 每个连接缓存的预编译语句数量, 0 表示不缓存
+    private int statementCacheSize = 64;
+
+    public PoolConfig() {
+    }
+
+    /**
+     * @Description 解析 pool.* 配置项, 未配置的项使用默认值
+     * @param properties 配置文件
+     * @return 连接池配置
+     */
+    public static PoolConfig fromProperties(Properties properties) {
+        PoolConfig config = new PoolConfig();
+        config.minSize = intValue(properties, "pool.minSize", config.minSize);
+        config.maxSize = intValue(properties, "pool.maxSize", config.maxSize);
+        config.borrowTimeout = longValue(properties, "pool.borrowTimeout", config.borrowTimeout);
+        config.idleTimeout = longValue(properties, "pool.idleTimeout", config.idleTimeout);
+        config.maxLifetime = longValue(properties, "pool.maxLifetime", config.maxLifetime);
+        config.validateOnBorrow = Boolean.parseBoolean(
+                properties.getProperty("pool.validateOnBorrow", String.valueOf(config.validateOnBorrow)));
+        config.validationTimeout = intValue(properties, "pool.validationTimeout", config.validationTimeout);
+        config.validationInterval = longValue(properties, "pool.validationInterval", config.validationInterval);
+        config.housekeepingPeriod = longValue(properties, "pool.housekeepingPeriod", config.housekeepingPeriod);
+        config.statementCacheSize = intValue(properties, "pool.statementCacheSize", config.statementCacheSize);
+        config.check();
+        return config;
+    }
+
+    private static int intValue(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long longValue(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    void check() {
+        if (maxSize <= 0) throw new IllegalArgumentException("pool.maxSize 必须大于 0");
+        if (minSize < 0 || minSize > maxSize) throw new IllegalArgumentException("pool.minSize 必须在 0 到 pool.maxSize 之间");
+        if (borrowTimeout < 0) throw new IllegalArgumentException("pool.borrowTimeout 不能小于 0");
+        if (housekeepingPeriod <= 0) throw new IllegalArgumentException("pool.housekeepingPeriod 必须大于 0");
+        if (statementCacheSize < 0) throw new IllegalArgumentException("pool.statementCacheSize 不能小于 0");
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public long getHousekeepingPeriod() {
+        return housekeepingPeriod;
+    }
+
+    public void setHousekeepingPeriod(long housekeepingPeriod) {
+        this.housekeepingPeriod = housekeepingPeriod;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+}
@@ -0,0 +1,193 @@
+package cn.momoky.sql;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * @ClassName QueryCache
+ * @Description 单个查询方法的结果缓存, 按绑定后的参数值缓存结果. 分段的 LRU 限制容量, 支持过期时间;
+ *              同一个键同时只有一个线程加载, 其他线程等待加载结果. 加载失败时抛出异常, 不缓存.
+ *              缓存的 List/Map 为只读视图, 数组每次命中时复制; bean 和 ColumnarResult 由所有调用方共享, 不能修改
+ * @Author 钟智峰
+ * @Date 2020/9/19 11:00
+ * @Version 1.0
+ */
+final class QueryCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttl;
+
+    // 每次清空时递增, 清空前开始的加载不再写入缓存
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    QueryCache(int maxSize, long ttl) {
+        if (maxSize <= 0) throw new IllegalArgumentException("@Cache size 必须大于 0");
+        this.ttl = ttl;
+        int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * @Description 取缓存的结果, 不存在或已过期时调用 loader 加载
+     * @param values 绑定后的参数值
+     * @param loader 执行查询, 失败时抛出异常
+     * @return 查询结果
+     */
+    Object get(Object[] values, Supplier<Object> loader) {
+        Key key = new Key(values);
+        Segment segment = segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+        long now = System.currentTimeMillis();
+
+        CacheEntry entry;
+        boolean load = false;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && entry.isExpired(now)) {
+                segment.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new CacheEntry(ttl > 0 ? now + ttl : Long.MAX_VALUE, generation.get());
+                segment.put(key, entry);
+                load = true;
+            }
+        }
+
+        if (!load) {
+            hits.increment();
+            try {
+                return copy(entry.future.join());
+            } catch (CompletionException e) {
+                throw ParamBinder.propagate(e.getCause());
+            }
+        }
+
+        misses.increment();
+        try {
+            Object value = readOnly(loader.get());
+            entry.future.complete(value);
+            // 加载期间缓存被清空, 结果可能已过时
+            if (entry.generation != generation.get()) remove(segment, key, entry);
+            return value;
+        } catch (RuntimeException | Error e) {
+            entry.future.completeExceptionally(e);
+            remove(segment, key, entry);
+            throw e;
+        }
+    }
+
+    private static Object readOnly(Object value) {
+        if (value instanceof List) return Collections.unmodifiableList((List<?>) value);
+        if (value instanceof Map) return Collections.unmodifiableMap((Map<?, ?>) value);
+        return value;
+    }
+
+    // 列式查询的数组不能做只读视图, 每次复制
+    private static Object copy(Object value) {
+        if (value instanceof long[]) return ((long[]) value).clone();
+        if (value instanceof int[]) return ((int[]) value).clone();
+        if (value instanceof double[]) return ((double[]) value).clone();
+        return value;
+    }
+
+    private void remove(Segment segment, Key key, CacheEntry entry) {
+        synchronized (segment) {
+            if (segment.get(key) == entry) segment.remove(key);
+        }
+    }
+
+    /**
+     * @Description 清空缓存
+     */
+    void invalidateAll() {
+        generation.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    CacheStats stats() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+
+    private final class Segment extends LinkedHashMap<Key, CacheEntry> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+            if (size() <= maxSize) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    private static final class CacheEntry {
+
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private final long expireAt;
+        private final long generation;
+
+        CacheEntry(long expireAt, long generation) {
+            this.expireAt = expireAt;
+            this.generation = generation;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expireAt;
+        }
+    }
+
+    private static final class Key {
+
+        private final Object[] values;
+        private final int hash;
+
+        Key(Object[] values) {
+            this.values = values;
+            this.hash = Arrays.deepHashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.deepEquals(values, ((Key) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package cn.momoky.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @ClassName ReplicaSet
+ * @Description 只读从库, 每个从库一个 MDataSource. 按最少未完成请求或加权轮询选择从库,
+ *              连续出现 replica.ejectAfterFailures 次连接错误的从库被摘除 replica.ejectTime 毫秒,
+ *              之后恢复接收请求, 再次出错立即摘除, 成功一次后恢复正常. 所有从库都被摘除时由调用方回退到主库
+ * @Author 钟智峰
+ * @Date 2020/9/24 10:10
+ * @Version 1.0
+ */
+final class ReplicaSet {
+
+    enum Balance {
+        // 选择借出连接数和等待线程数之和与权重之比最小的从库
+        LEAST_OUTSTANDING,
+        // 按权重轮询
+        ROUND_ROBIN
+    }
+
+    private final Replica[] replicas;
+    private final Balance balance;
+    // 加权轮询的顺序, 元素为 replicas 的下标
+    private final int[] schedule;
+    private final AtomicLong next = new AtomicLong();
+
+    private final int ejectAfterFailures;
+    private final long ejectNanos;
+
+    ReplicaSet(List<Replica> replicas, Balance balance, int ejectAfterFailures, long ejectMillis) {
+        this.replicas = replicas.toArray(new Replica[0]);
+        this.balance = balance;
+        this.ejectAfterFailures = ejectAfterFailures;
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(ejectMillis);
+        this.schedule = schedule(this.replicas);
+    }
+
+    /**
+     * @Description 解析从库配置, 如:
+     *              replicas=r1,r2
+     *              replica.r1.url=...  replica.r1.user=...  replica.r1.password=...  replica.r1.weight=2
+     *              replica.balance=leastOutstanding|roundRobin  replica.ejectAfterFailures=3  replica.ejectTime=30000
+     *              未配置 user/password 时使用主库的, 每个从库的连接池使用与主库相同的 pool.* 配置
+     * @return 从库, 没有配置 replicas 时返回 null
+     */
+    static ReplicaSet fromProperties(Properties properties, String driver, String user, String password, PoolConfig poolConfig) {
+        String names = properties.getProperty("replicas", "").trim();
+        if (names.isEmpty()) return null;
+
+        List<Replica> replicas = new ArrayList<>();
+        try {
+            return fromProperties(properties, names, driver, user, password, poolConfig, replicas);
+        } catch (RuntimeException | Error e) {
+            // 配置有误时关闭已经创建的连接池
+            for (Replica replica : replicas) replica.dataSource.close();
+            throw e;
+        }
+    }
+
+    private static ReplicaSet fromProperties(Properties properties, String names, String driver, String user, String password,
+                                             PoolConfig poolConfig, List<Replica> replicas) {
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            String prefix = "replica." + name + ".";
+            String url = properties.getProperty(prefix + "url");
+            if (url == null) throw new RuntimeException("从库 " + name + " 缺少 " + prefix + "url 配置");
+            int weight = Integer.parseInt(properties.getProperty(prefix + "weight", "1").trim());
+            if (weight <= 0) throw new IllegalArgumentException(prefix + "weight 必须大于 0");
+            MDataSource dataSource = new MDataSource(driver, url.trim(),
+                    properties.getProperty(prefix + "user", user),
+                    properties.getProperty(prefix + "password", password), poolConfig);
+            replicas.add(new Replica(name, dataSource, weight));
+        }
+
+        String balance = properties.getProperty("replica.balance", "leastOutstanding").trim();
+        Balance mode;
+        if ("leastOutstanding".equalsIgnoreCase(balance)) mode = Balance.LEAST_OUTSTANDING;
+        else if ("roundRobin".equalsIgnoreCase(balance)) mode = Balance.ROUND_ROBIN;
+        else throw new IllegalArgumentException("replica.balance 只能为 leastOutstanding 或 roundRobin: " + balance);
+
+        int ejectAfterFailures = Integer.parseInt(properties.getProperty("replica.ejectAfterFailures", "3").trim());
+        long ejectTime = Long.parseLong(properties.getProperty("replica.ejectTime", "30000").trim());
+        return new ReplicaSet(replicas, mode, ejectAfterFailures, ejectTime);
+    }
+
+    // 平滑加权轮询, 权重 {a:3, b:1} 得到 a a b a 而不是 a a a b
+    private static int[] schedule(Replica[] replicas) {
+        int total = 0;
+        for (Replica replica : replicas) total += replica.weight;
+        int[] schedule = new int[total];
+        int[] current = new int[replicas.length];
+        for (int n = 0; n < total; n++) {
+            int best = 0;
+            for (int i = 0; i < replicas.length; i++) {
+                current[i] += replicas[i].weight;
+                if (current[i] > current[best]) best = i;
+            }
+            current[best] -= total;
+            schedule[n] = best;
+        }
+        return schedule;
+    }
+
+    /**
+     * @Description 关闭所有从库的连接池
+     */
+    void close() {
+        for (Replica replica : replicas) replica.dataSource.close();
+    }
+
+    List<Replica> getReplicas() {
+        List<Replica> list = new ArrayList<>();
+        for (Replica replica : replicas) list.add(replica);
+        return list;
+    }
+
+    /**
+     * @Description 选择一个未被摘除的从库
+     * @return 从库, 全部被摘除时返回 null
+     */
+    Replica select() {
+        long now = System.nanoTime();
+        if (balance == Balance.ROUND_ROBIN) {
+            for (int i = 0; i < schedule.length; i++) {
+                Replica replica = replicas[schedule[(int) (next.getAndIncrement() % schedule.length)]];
+                if (replica.isAvailable(now)) return replica;
+            }
+            return null;
+        }
+
+        // 从轮转的位置开始比较, 负载相同时请求分散到各个从库
+        int start = (int) (next.getAndIncrement() % replicas.length);
+        Replica best = null;
+        int bestLoad = 0;
+        for (int i = 0; i < replicas.length; i++) {
+            Replica replica = replicas[(start + i) % replicas.length];
+            if (!replica.isAvailable(now)) continue;
+            int load = replica.outstanding();
+            // load / weight < bestLoad / best.weight
+            if (best == null || (long) load * best.weight < (long) bestLoad * replica.weight) {
+                best = replica;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @Description 从从库获取连接, 失败时打印异常并计入失败次数
+     * @return 连接, 获取失败时返回 null, 由调用方改用主库
+     */
+    Connection getConnection(Replica replica) {
+        try {
+            return replica.dataSource.getConnection();
+        } catch (SQLException e) {
+            failed(replica);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    void succeeded(Replica replica) {
+        if (replica.failures.get() != 0) replica.failures.set(0);
+        if (replica.ejectedUntil != 0) replica.ejectedUntil = 0;
+    }
+
+    // 执行语句出错时只有连接错误计入失败次数, SQL 本身的错误与从库状态无关
+    void failed(Replica replica, SQLException e) {
+        if (isConnectionError(e)) failed(replica);
+    }
+
+    private void failed(Replica replica) {
+        if (replica.failures.incrementAndGet() >= ejectAfterFailures) {
+            // 失败次数不清零, 恢复后再出错一次即重新摘除
+            replica.ejectedUntil = System.nanoTime() + ejectNanos;
+        }
+    }
+
+    static boolean isConnectionError(SQLException e) {
+        if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLRecoverableException || e instanceof SQLTimeoutException) return true;
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    static final class Replica {
+
+        final String name;
+        final MDataSource dataSource;
+        final int weight;
+
+        // 连续失败次数
+        private final AtomicInteger failures = new AtomicInteger();
+        // 摘除到的时间(System.nanoTime), 0 表示未摘除
+        private volatile long ejectedUntil;
+
+        Replica(String name, MDataSource dataSource, int weight) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.weight = weight;
+        }
+
+        boolean isAvailable(long now) {
+            long until = ejectedUntil;
+            return until == 0 || now - until >= 0;
+        }
+
+        int outstanding() {
+            return dataSource.getActiveConnections() + dataSource.getWaitingThreads();
+        }
+    }
+}
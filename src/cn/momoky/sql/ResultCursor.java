@@ -0,0 +1,127 @@
+package cn.momoky.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * @ClassName ResultCursor
+ * @Description Cursor 的实现, 持有连接、语句和结果集, 遍历结束、出错或 close 时释放
+ * @Author 钟智峰
+ * @Date 2020/9/15 20:10
+ * @Version 1.0
+ */
+final class ResultCursor<T> implements Cursor<T> {
+
+    // 事务中打开的游标不持有连接, 为 null
+    private final Connection conn;
+    private final PreparedStatement pst;
+    private final ResultSet rs;
+    private final RowReader<T> reader;
+
+    // close 可能在其他线程调用(如取消订阅), 只有第一次调用释放资源
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private boolean iterated = false;
+    private int rowCount = 0;
+
+    ResultCursor(Connection conn, PreparedStatement pst, ResultSet rs, RowReader<T> reader) {
+        this.conn = conn;
+        this.pst = pst;
+        this.rs = rs;
+        this.reader = reader;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public CloseableIterator<T> iterator() {
+        if (iterated) throw new IllegalStateException("Cursor 只能遍历一次");
+        iterated = true;
+        return new RowIterator();
+    }
+
+    @Override
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        if (!open.compareAndSet(true, false)) return;
+        try {
+            rs.close();
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+        try {
+            pst.close();
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+        if (conn == null) return;
+        try {
+            conn.close();
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+    }
+
+    private class RowIterator implements CloseableIterator<T> {
+
+        // 是否已经将结果集移动到下一行但尚未取出
+        private boolean fetched = false;
+
+        @Override
+        public boolean hasNext() {
+            if (fetched) return true;
+            if (!open.get()) return false;
+            try {
+                if (rs.next()) {
+                    fetched = true;
+                    return true;
+                }
+            } catch (SQLException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+            // 读完后立即归还连接
+            close();
+            return false;
+        }
+
+        @Override
+        public void close() {
+            ResultCursor.this.close();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            fetched = false;
+            try {
+                T row = reader.read(rs);
+                rowCount++;
+                return row;
+            } catch (SQLException | RuntimeException e) {
+                close();
+                throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+            }
+        }
+    }
+}
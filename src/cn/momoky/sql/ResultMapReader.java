@@ -0,0 +1,169 @@
+package cn.momoky.sql;
+
+import cn.momoky.annotation.Nested;
+import cn.momoky.annotation.ResultMap;
+import cn.momoky.util.BeanUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @ClassName ResultMapReader
+ * @Description 按 @ResultMap 一次遍历 JOIN 查询的结果集: 外层对象按标识列放入标识映射, 同一标识的后续行只填充嵌套属性,
+ *              List 属性按嵌套对象的标识去重, 多个 List 属性 JOIN 产生的重复行不会重复加入
+ * @Author 钟智峰
+ * @Date 2020/9/27 15:00
+ * @Version 1.0
+ */
+final class ResultMapReader<T> {
+
+    private final BeanRowMapper<T> parent;
+    private final String id;
+    private final Property[] properties;
+
+    ResultMapReader(Class<T> type, ResultMap resultMap) {
+        Nested[] nested = resultMap.nested();
+        String[] prefixes = new String[nested.length];
+        this.properties = new Property[nested.length];
+        for (int i = 0; i < nested.length; i++) {
+            prefixes[i] = nested[i].prefix();
+            properties[i] = new Property(type, nested[i]);
+        }
+        this.parent = new BeanRowMapper<>(type, "", prefixes);
+        this.id = resultMap.id();
+    }
+
+    /**
+     * @Description 读取结果集剩余的全部行
+     * @param rs 结果集
+     * @return 外层对象, 按标识第一次出现的顺序
+     */
+    List<T> read(ResultSet rs) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        RowReader<T> parentReader = parent.plan(rs);
+        int idColumn = column(metaData, "", id);
+        RowReader<?>[] readers = new RowReader<?>[properties.length];
+        int[] idColumns = new int[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            readers[i] = properties[i].mapper.plan(rs);
+            idColumns[i] = column(metaData, properties[i].prefix, properties[i].id);
+        }
+
+        Map<Object, Entry> identities = new LinkedHashMap<>();
+        List<T> result = new ArrayList<>();
+        while (rs.next()) {
+            Object key = rs.getObject(idColumn);
+            Entry entry = key == null ? null : identities.get(key);
+            if (entry == null) {
+                T bean = parentReader.read(rs);
+                entry = new Entry(bean, properties.length);
+                for (int i = 0; i < properties.length; i++) {
+                    if (properties[i].many) properties[i].set(bean, entry.lists[i] = new ArrayList<>());
+                }
+                result.add(bean);
+                if (key != null) identities.put(key, entry);
+            }
+            for (int i = 0; i < properties.length; i++) {
+                Object childKey = rs.getObject(idColumns[i]);
+                if (childKey == null || !entry.seen[i].add(childKey)) continue;
+                Object child = readers[i].read(rs);
+                if (properties[i].many) {
+                    entry.lists[i].add(child);
+                } else {
+                    properties[i].set(entry.bean, child);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int column(ResultSetMetaData metaData, String prefix, String name) throws SQLException {
+        String label = prefix + name;
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (label.equalsIgnoreCase(metaData.getColumnLabel(i))) return i;
+        }
+        throw new RuntimeException("@ResultMap 的结果中缺少标识列 " + label);
+    }
+
+    // 一个外层对象及其嵌套属性已加入的标识
+    private static final class Entry {
+
+        private final Object bean;
+        private final List<Object>[] lists;
+        private final Set<Object>[] seen;
+
+        @SuppressWarnings("unchecked")
+        Entry(Object bean, int size) {
+            this.bean = bean;
+            this.lists = (List<Object>[]) new List<?>[size];
+            this.seen = (Set<Object>[]) new Set<?>[size];
+            for (int i = 0; i < size; i++) {
+                seen[i] = new HashSet<>();
+            }
+        }
+    }
+
+    private static final class Property {
+
+        private final String prefix;
+        private final String id;
+        private final boolean many;
+        private final BeanRowMapper<?> mapper;
+        // (Object, Object)void
+        private final MethodHandle setter;
+
+        Property(Class<?> owner, Nested nested) {
+            this.prefix = nested.prefix();
+            this.id = nested.id();
+            Method method = findSetter(owner, nested.property());
+            Class<?> propertyType = method.getParameterTypes()[0];
+            this.many = propertyType == List.class;
+            Class<?> type = nested.type();
+            if (type == void.class) {
+                type = many ? elementType(method.getGenericParameterTypes()[0]) : propertyType;
+            }
+            if (type == null) {
+                throw new RuntimeException(owner.getName() + "." + nested.property() + " 需要在 @Nested 中指定 type");
+            }
+            this.mapper = new BeanRowMapper<>(type, prefix, new String[0]);
+            MethodHandle handle = BeanUtil.setterHandles(owner).get(nested.property());
+            this.setter = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+
+        void set(Object bean, Object value) {
+            try {
+                setter.invokeExact(bean, value);
+            } catch (Throwable e) {
+                throw ParamBinder.propagate(e);
+            }
+        }
+
+        private static Method findSetter(Class<?> owner, String property) {
+            String name = "set" + property.substring(0, 1).toUpperCase() + property.substring(1);
+            for (Class<?> c = owner; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Method m : c.getDeclaredMethods()) {
+                    if (m.getName().equals(name) && m.getParameterCount() == 1) return m;
+                }
+            }
+            throw new RuntimeException(owner.getName() + " 中没有属性 " + property + " 的 setter");
+        }
+
+        private static Class<?> elementType(Type type) {
+            if (!(type instanceof ParameterizedType)) return null;
+            Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+            return arg instanceof Class ? (Class<?>) arg : null;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package cn.momoky.sql;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @ClassName RowPublisher
+ * @Description 按 Reactive Streams 规范逐行发送查询结果. 每次订阅在第一次 request 时执行一次查询,
+ *              之后按订阅者请求的数量在线程池中读取和映射行, 没有请求时不占用线程;
+ *              发送完毕、出错或 cancel 时关闭游标并归还连接. 同一订阅的读取任务在线程池中串行执行.
+ *              持有连接的订阅在请求未满足前不让出线程, 否则线程可能都被等待连接的订阅占用
+ * @Author 钟智峰
+ * @Date 2020/9/26 16:00
+ * @Version 1.0
+ */
+final class RowPublisher<T> {
+
+    /**
+     * @Description 与 Flow.Subscriber 相同的订阅者接口
+     */
+    interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * @Description 与 Flow.Subscription 相同的订阅接口
+     */
+    interface Subscription {
+
+        void request(long n);
+
+        void cancel();
+    }
+
+    // 执行查询并打开游标
+    private final Callable<Cursor<T>> query;
+    private final Executor executor;
+
+    RowPublisher(Callable<Cursor<T>> query, Executor executor) {
+        this.query = query;
+        this.executor = executor;
+    }
+
+    void subscribe(Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new RowSubscription(subscriber));
+    }
+
+    private final class RowSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super T> subscriber;
+        // 尚未满足的请求数, Long.MAX_VALUE 表示不限
+        private final AtomicLong demand = new AtomicLong();
+        // 待处理的信号数, 从 0 变为 1 的线程负责提交读取任务
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        // 以下只在读取任务中访问
+        private Cursor<T> cursor;
+        private Iterator<T> rows;
+        private boolean done;
+
+        RowSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("request 的数量必须大于 0: " + n);
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                    if (current == Long.MAX_VALUE) break;
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (;;) {
+                drain();
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) return;
+            }
+        }
+
+        // 按请求发送行, 直到请求数为 0 或结束
+        private void drain() {
+            if (done) return;
+            if (cancelled) {
+                finish();
+                return;
+            }
+            if (invalidRequest != null) {
+                finish();
+                subscriber.onError(invalidRequest);
+                return;
+            }
+            try {
+                if (demand.get() == 0) return;
+                if (cursor == null) {
+                    cursor = query.call();
+                    rows = cursor.iterator();
+                }
+                while (demand.get() > 0) {
+                    if (cancelled) {
+                        finish();
+                        return;
+                    }
+                    if (!rows.hasNext()) {
+                        finish();
+                        try {
+                            subscriber.onComplete();
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                        }
+                        return;
+                    }
+                    T row = rows.next();
+                    if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                    try {
+                        subscriber.onNext(row);
+                    } catch (Throwable e) {
+                        subscriberFailed(e);
+                        return;
+                    }
+                }
+            } catch (Throwable e) {
+                finish();
+                subscriber.onError(e);
+            }
+        }
+
+        // 订阅者的方法抛出异常时视为已 cancel, 关闭游标并打印异常, 不再回调订阅者
+        private void subscriberFailed(Throwable e) {
+            cancelled = true;
+            finish();
+            e.printStackTrace();
+        }
+
+        private void finish() {
+            done = true;
+            if (cursor != null) cursor.close();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package cn.momoky.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * @ClassName RowReader
+ * @Description 读取结果集当前行, 转换为返回值的元素
+ * @Author 钟智峰
+ * @Date 2020/9/15 20:10
+ * @Version 1.0
+ */
+interface RowReader<T> {
+
+    T read(ResultSet rs) throws SQLException;
+
+}
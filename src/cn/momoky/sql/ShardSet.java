@@ -0,0 +1,287 @@
+package cn.momoky.sql;
+
+import cn.momoky.annotation.Shard;
+import cn.momoky.util.BeanUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @ClassName ShardSet
+ * @Description 分片库, 按 shards 配置的顺序编号, 每个分片一个 MDataSource. 负责按分片键选择分片,
+ *              以及按 @Shard.merge 合并扇出查询的结果: 默认只合并行, List 按 @Shard.orderBy 多路归并并截取 limit 行,
+ *              基本类型数组和 ColumnarResult 按分片顺序拼接; SUM 对整数和 BigDecimal 求和, FIRST 取第一个非空的结果
+ * @Author 钟智峰
+ * @Date 2020/9/25 09:20
+ * @Version 1.0
+ */
+final class ShardSet {
+
+    private final String[] names;
+    private final MDataSource[] dataSources;
+    // 扇出线程池的大小, 为所有分片的连接数之和, 更多的线程只会等待连接
+    private final int threads;
+    // 扇出查询访问其他分片的线程池, 第一次扇出时创建
+    private volatile ExecutorService executor;
+
+    ShardSet(String[] names, MDataSource[] dataSources, int poolSize) {
+        this.names = names;
+        this.dataSources = dataSources;
+        this.threads = Math.max(1, dataSources.length * poolSize);
+    }
+
+    /**
+     * @Description 解析分片配置, 如:
+     *              shards=s0,s1,s2
+     *              shard.s0.url=...  shard.s0.user=...  shard.s0.password=...
+     *              未配置 user/password 时使用主库的, 每个分片的连接池使用与主库相同的 pool.* 配置.
+     *              分片的顺序决定数据的分布, 配置后不能调整
+     * @return 分片库, 没有配置 shards 时返回 null
+     */
+    static ShardSet fromProperties(Properties properties, String driver, String user, String password, PoolConfig poolConfig) {
+        String shards = properties.getProperty("shards", "").trim();
+        if (shards.isEmpty()) return null;
+
+        List<String> names = new ArrayList<>();
+        List<MDataSource> dataSources = new ArrayList<>();
+        try {
+            for (String name : shards.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) continue;
+                String prefix = "shard." + name + ".";
+                String url = properties.getProperty(prefix + "url");
+                if (url == null) throw new RuntimeException("分片 " + name + " 缺少 " + prefix + "url 配置");
+                names.add(name);
+                dataSources.add(new MDataSource(driver, url.trim(),
+                        properties.getProperty(prefix + "user", user),
+                        properties.getProperty(prefix + "password", password), poolConfig));
+            }
+        } catch (RuntimeException | Error e) {
+            // 配置有误时关闭已经创建的连接池
+            for (MDataSource dataSource : dataSources) dataSource.close();
+            throw e;
+        }
+        return new ShardSet(names.toArray(new String[0]), dataSources.toArray(new MDataSource[0]), poolConfig.getMaxSize());
+    }
+
+    int size() {
+        return dataSources.length;
+    }
+
+    String name(int shard) {
+        return names[shard];
+    }
+
+    MDataSource get(int shard) {
+        return dataSources[shard];
+    }
+
+    /**
+     * @Description 分片键对应的分片: 整数按数值取模, 其他类型按 toString().hashCode() 取模
+     * @param key 分片键的值, 不为 null
+     * @return 分片下标
+     */
+    int shardOf(Object key) {
+        long hash;
+        if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            hash = ((Number) key).longValue();
+        } else {
+            hash = key.toString().hashCode();
+        }
+        return (int) Math.floorMod(hash, (long) dataSources.length);
+    }
+
+    /**
+     * @Description 关闭所有分片的连接池和扇出线程池
+     */
+    void close() {
+        ExecutorService e = executor;
+        if (e != null) e.shutdown();
+        for (MDataSource dataSource : dataSources) dataSource.close();
+    }
+
+    ExecutorService executor() {
+        ExecutorService e = executor;
+        if (e == null) {
+            synchronized (this) {
+                e = executor;
+                if (e == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), r -> {
+                                Thread thread = new Thread(r, "sql-mapper-shard-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+                    // 空闲时不保留线程
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = e = pool;
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     * @Description 合并各分片的结果
+     * @param returnType 方法的返回值类型
+     * @param results 各分片的结果, 按分片顺序
+     * @param mode 合并方式
+     * @param order List 结果的顺序, 为 null 时按分片顺序拼接
+     * @param limit 最多返回的行数, 0 表示不限制
+     */
+    @SuppressWarnings("unchecked")
+    static Object merge(Class<?> returnType, List<Object> results, Shard.Merge mode, Comparator<Object> order, int limit) {
+        if (returnType == void.class) return null;
+        if (mode == Shard.Merge.SUM) return sum(returnType, results);
+        if (mode == Shard.Merge.FIRST) return first(returnType, results);
+        if (returnType == List.class) {
+            List<List<Object>> lists = new ArrayList<>();
+            for (Object result : results) {
+                if (result != null) lists.add((List<Object>) result);
+            }
+            return order == null ? concat(lists, limit) : mergeSorted(lists, order, limit);
+        }
+        if (ColumnReader.isColumnar(returnType)) {
+            List<Object> parts = new ArrayList<>();
+            for (Object result : results) {
+                if (result != null) parts.add(result);
+            }
+            return parts.isEmpty() ? null : ColumnReader.concat(parts);
+        }
+        throw new RuntimeException("扇出查询默认只合并 List、基本类型数组和 ColumnarResult, 返回 "
+                + returnType.getName() + " 时请设置 @Shard(merge = SUM 或 FIRST)");
+    }
+
+    /**
+     * @Description @Shard(merge = SUM) 支持的返回值类型
+     */
+    static boolean isSummable(Class<?> returnType) {
+        return returnType == long.class || returnType == Long.class || returnType == int.class
+                || returnType == Integer.class || returnType == BigDecimal.class;
+    }
+
+    private static Object sum(Class<?> returnType, List<Object> results) {
+        if (returnType == long.class || returnType == Long.class) {
+            long sum = 0;
+            for (Object result : results) if (result != null) sum += ((Number) result).longValue();
+            return sum;
+        }
+        if (returnType == int.class || returnType == Integer.class) {
+            int sum = 0;
+            for (Object result : results) if (result != null) sum += ((Number) result).intValue();
+            return sum;
+        }
+        if (returnType == BigDecimal.class) {
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Object result : results) if (result != null) sum = sum.add((BigDecimal) result);
+            return sum;
+        }
+        throw new RuntimeException("@Shard(merge = SUM) 只支持 int、long 和 BigDecimal: " + returnType.getName());
+    }
+
+    private static Object first(Class<?> returnType, List<Object> results) {
+        for (Object result : results) {
+            if (result == null) continue;
+            if (result instanceof Map && ((Map<?, ?>) result).isEmpty()) continue;
+            return result;
+        }
+        return returnType.isAssignableFrom(Map.class) && !results.isEmpty() ? results.get(0) : null;
+    }
+
+    private static List<Object> concat(List<List<Object>> lists, int limit) {
+        List<Object> merged = new ArrayList<>();
+        for (List<Object> list : lists) {
+            for (Object row : list) {
+                if (limit > 0 && merged.size() == limit) return merged;
+                merged.add(row);
+            }
+        }
+        return merged;
+    }
+
+    // 各分片的结果已按 order 排好序, 多路归并到 limit 行为止
+    private static List<Object> mergeSorted(List<List<Object>> lists, Comparator<Object> order, int limit) {
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, lists.size()),
+                (a, b) -> {
+                    int c = order.compare(lists.get(a[0]).get(a[1]), lists.get(b[0]).get(b[1]));
+                    // 相同时按分片顺序, 使结果稳定
+                    return c != 0 ? c : Integer.compare(a[0], b[0]);
+                });
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) heads.add(new int[]{i, 0});
+        }
+        List<Object> merged = new ArrayList<>();
+        while (!heads.isEmpty() && (limit <= 0 || merged.size() < limit)) {
+            int[] head = heads.poll();
+            List<Object> list = lists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (++head[1] < list.size()) heads.add(head);
+        }
+        return merged;
+    }
+
+    /**
+     * @Description 将 "createdAt desc, id" 解析为行的比较器, 行为 Bean 时按属性比较, 为 Map 时按列名比较(忽略大小写),
+     *              值为 null 的行排在最后
+     * @param orderBy @Shard.orderBy
+     * @param elementType List 的元素类型
+     * @return 比较器, orderBy 为空时返回 null
+     */
+    static Comparator<Object> comparator(String orderBy, Class<?> elementType) {
+        if (orderBy == null || orderBy.trim().isEmpty()) return null;
+        Comparator<Object> result = null;
+        for (String item : orderBy.split(",")) {
+            String[] parts = item.trim().split("\\s+");
+            String property = parts[0];
+            boolean desc = parts.length > 1 && "desc".equalsIgnoreCase(parts[1]);
+            Comparator<Object> values = ShardSet::compareValues;
+            // 先反转再处理 null, 降序时 null 仍然排在最后
+            Comparator<Object> c = Comparator.comparing(valueOf(property, elementType),
+                    Comparator.nullsLast(desc ? values.reversed() : values));
+            result = result == null ? c : result.thenComparing(c);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    // 取得行中的属性, Map 按列名匹配, 忽略大小写
+    static java.util.function.Function<Object, Object> valueOf(String property, Class<?> elementType) {
+        if (elementType == null || Map.class.isAssignableFrom(elementType)) {
+            return row -> {
+                Map<?, ?> map = (Map<?, ?>) row;
+                Object value = map.get(property);
+                if (value != null || map.containsKey(property)) return value;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (property.equalsIgnoreCase(String.valueOf(entry.getKey()))) return entry.getValue();
+                }
+                return null;
+            };
+        }
+        MethodHandle getter = BeanUtil.getterHandle(elementType, property)
+                .asType(MethodType.methodType(Object.class, Object.class));
+        return row -> {
+            try {
+                return (Object) getter.invokeExact(row);
+            } catch (Throwable e) {
+                throw ParamBinder.propagate(e);
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+package cn.momoky.sql;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @ClassName SlowQueryLog
+ * @Description 调用耗时超过阈值时以 WARNING 级别输出到 java.util.logging 的 cn.momoky.sql.SlowQuery,
+ *              内容包括 SQL、绑定的参数值和各阶段耗时, 由 metrics.slowQueryThreshold(毫秒) 开启
+ * @Author 钟智峰
+ * @Date 2020/9/22 11:10
+ * @Version 1.0
+ */
+public final class SlowQueryLog implements MetricsCollector {
+
+    private static final Logger LOGGER = Logger.getLogger("cn.momoky.sql.SlowQuery");
+
+    private final long thresholdNanos;
+
+    public SlowQueryLog(long thresholdMillis) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    @Override
+    public void record(Invocation invocation) {
+        if (invocation.getTotalNanos() < thresholdNanos || !LOGGER.isLoggable(Level.WARNING)) return;
+        StringBuilder sb = new StringBuilder("慢查询 ").append(invocation.getMethodName())
+                .append(" 耗时 ").append(micros(invocation.getTotalNanos())).append("ms");
+        if (!invocation.isCacheHit()) {
+            sb.append(" (获取连接 ").append(micros(invocation.getAcquireNanos()))
+                    .append("ms, 绑定 ").append(micros(invocation.getBindNanos()))
+                    .append("ms, 执行 ").append(micros(invocation.getExecuteNanos()))
+                    .append("ms, 映射 ").append(micros(invocation.getMappingNanos()))
+                    .append("ms, ").append(invocation.getRows()).append(" 行)");
+        }
+        sb.append("\n  SQL: ").append(invocation.getSql())
+                .append("\n  参数: ").append(Arrays.toString(invocation.getParameters()));
+        LOGGER.log(Level.WARNING, sb.toString(), invocation.getError());
+    }
+
+    // 纳秒转换为保留三位小数的毫秒
+    private static String micros(long nanos) {
+        return String.format("%.3f", nanos / 1_000_000.0);
+    }
+}
@@ -3,15 +3,35 @@ package cn.momoky.sql;
 import cn.momoky.annotation.*;
 import cn.momoky.util.BeanUtil;
 
+import javax.management.ObjectName;
 import javax.sql.DataSource;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * @ClassName SqlMapper
@@ -22,17 +42,79 @@ import java.util.regex.Pattern;
  */
 public class SqlMapperFactory {
 
-    private final Map<String, Object> proxyMap = new HashMap<>();
-    private final Map<String, MethodInfo> methodMap = new HashMap<>();
+    // metrics.jfr 使用的采集器, 位于 jfr 模块
+    private static final String JFR_COLLECTOR = "cn.momoky.sql.JfrMetricsCollector";
+
+    // 同一 Mapper 方法解析出的元数据(SQL、绑定器、动态 SQL 模板、行映射器)由所有工厂共享, 随 Mapper 类一起回收
+    private static final ClassValue<Map<Method, MethodInfo>> PARSED = new ClassValue<Map<Method, MethodInfo>>() {
+        @Override
+        protected Map<Method, MethodInfo> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final Map<String, Object> proxyMap = new ConcurrentHashMap<>();
+    private final Map<String, MethodInfo> methodMap = new ConcurrentHashMap<>();
 
     private final DataSource dataSource;
+    // 只读从库, 未配置时为 null
+    private final ReplicaSet replicas;
+    // 分片库, 未配置时为 null
+    private final ShardSet shards;
+
+    // 编译期生成的 Mapper 接口名 - 实现类名
+    private final Map<String, String> mapperIndex;
+
+    // 查询默认的 fetchSize, 0 表示使用驱动的默认值
+    private final int defaultFetchSize;
+    // 批量执行默认每批的行数
+    private final int defaultBatchSize;
+    // mapper.lazy 为 true 时方法在第一次调用时解析, 否则在创建工厂时并行解析全部 Mapper
+    private final boolean lazy;
+
+    private final Properties properties;
+    // 当前线程的事务, 事务中的 Mapper 调用共用其中的连接
+    private final ThreadLocal<TransactionContext> currentTransaction = new ThreadLocal<>();
+
+    // Mapper 类名 - 其中查询方法的缓存
+    private final Map<String, List<QueryCache>> mapperCaches = new ConcurrentHashMap<>();
+    // 表名(小写) - 依赖该表的查询缓存
+    private final Map<String, List<QueryCache>> tableCaches = new ConcurrentHashMap<>();
+    // 策略:段大小:查询 - @GeneratedId 的主键分配器
+    private final Map<String, IdAllocator> idAllocators = new ConcurrentHashMap<>();
+    // 执行 CompletableFuture 方法的线程池, 第一次异步调用时创建
+    private volatile Executor asyncExecutor;
+
+    // 指标采集器, 为 null 时不采集, 调用时只多一次判断
+    private volatile MetricsCollector[] collectors;
+    // metrics.enabled 时创建的默认采集器
+    private MetricsRegistry metrics;
 
     SqlMapperFactory(List<Class<?>> classes, DataSource dataSource) {
+        this(classes, dataSource, new Properties());
+    }
+
+    SqlMapperFactory(List<Class<?>> classes, DataSource dataSource, Properties properties) {
+        this(classes, dataSource, null, null, properties);
+    }
+
+    SqlMapperFactory(List<Class<?>> classes, DataSource dataSource, ReplicaSet replicas, ShardSet shards,
+                     Properties properties) {
         this.dataSource = dataSource;
+        this.replicas = replicas;
+        this.shards = shards;
+        this.properties = properties;
+        this.mapperIndex = MapperIndex.load(Thread.currentThread().getContextClassLoader());
+        this.defaultFetchSize = Integer.parseInt(properties.getProperty("query.fetchSize", "0").trim());
+        this.defaultBatchSize = Integer.parseInt(properties.getProperty("batch.size", "1000").trim());
+        this.lazy = Boolean.parseBoolean(properties.getProperty("mapper.lazy", "false").trim());
+        configureMetrics(properties);
+        List<Class<?>> mappers = new ArrayList<>();
         for (Class<?> clazz : classes) {
-            if (!clazz.isAnnotationPresent(Mapper.class)) continue;
-            createMapper(clazz);
+            if (clazz.isAnnotationPresent(Mapper.class)) mappers.add(clazz);
         }
+        // 各 Mapper 互不依赖, 并行创建
+        (mappers.size() > 1 ? mappers.parallelStream() : mappers.stream()).forEach(this::createMapper);
     }
 
     public <T> T getMapper(Class<T> clazz) {
@@ -43,63 +125,800 @@ public class SqlMapperFactory {
         return (T) proxyMap.get(className);
     }
 
-    private <T> void createMapper(Class<T> clazz) {
+    /**
+     * @Description 指定执行 CompletableFuture 方法的线程池, 替换 async.* 配置创建的线程池
+     * @param executor 线程池
+     */
+    public void setAsyncExecutor(Executor executor) {
+        this.asyncExecutor = executor;
+    }
+
+    /**
+     * @Description 解析 metrics.* 配置:
+     *              metrics.enabled 开启默认的 MetricsRegistry, metrics.jmx 将方法指标和连接池状态注册到 JMX,
+     *              metrics.jfr 提交 JFR 事件, metrics.slowQueryThreshold 记录超过该毫秒数的调用,
+     *              metrics.collectors 为逗号分隔的 MetricsCollector 实现类名
+     */
+    private void configureMetrics(Properties properties) {
+        boolean jmx = Boolean.parseBoolean(properties.getProperty("metrics.jmx", "false").trim());
+        if (Boolean.parseBoolean(properties.getProperty("metrics.enabled", "false").trim())) {
+            metrics = new MetricsRegistry(jmx);
+            addMetricsCollector(metrics);
+        }
+        if (jmx && dataSource instanceof MDataSource) {
+            MetricsRegistry.register("type=MDataSource,name="
+                    + ObjectName.quote(properties.getProperty("metrics.name", "default")), dataSource);
+        }
+        if (jmx && replicas != null) {
+            for (ReplicaSet.Replica replica : replicas.getReplicas()) {
+                MetricsRegistry.register("type=MDataSource,name=" + ObjectName.quote(replica.name), replica.dataSource);
+            }
+        }
+        if (jmx && shards != null) {
+            for (int i = 0; i < shards.size(); i++) {
+                MetricsRegistry.register("type=MDataSource,name=" + ObjectName.quote(shards.name(i)), shards.get(i));
+            }
+        }
+        if (Boolean.parseBoolean(properties.getProperty("metrics.jfr", "false").trim())) {
+            // JFR 采集器在 jfr 模块中按 Java 11 编译, 通过反射创建
+            try {
+                Class<?> clazz = Class.forName(JFR_COLLECTOR, true, SqlMapperFactory.class.getClassLoader());
+                addMetricsCollector((MetricsCollector) clazz.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException | LinkageError e) {
+                throw new RuntimeException("当前 JDK 不支持 JFR 或类路径上缺少 jfr 模块, 无法开启 metrics.jfr", e);
+            }
+        }
+        long slowQueryThreshold = Long.parseLong(properties.getProperty("metrics.slowQueryThreshold", "0").trim());
+        if (slowQueryThreshold > 0) {
+            addMetricsCollector(new SlowQueryLog(slowQueryThreshold));
+        }
+        for (String className : properties.getProperty("metrics.collectors", "").split(",")) {
+            className = className.trim();
+            if (className.isEmpty()) continue;
+            try {
+                Class<?> clazz = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+                addMetricsCollector((MetricsCollector) clazz.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new RuntimeException("无法创建指标采集器 " + className, e);
+            }
+        }
+    }
+
+    /**
+     * @Description 注册指标采集器, 之后的每次 Mapper 调用结束时回调
+     * @param collector 指标采集器
+     */
+    public synchronized void addMetricsCollector(MetricsCollector collector) {
+        MetricsCollector[] current = collectors;
+        if (current == null) {
+            collectors = new MetricsCollector[]{collector};
+        } else {
+            MetricsCollector[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = collector;
+            collectors = next;
+        }
+    }
+
+    /**
+     * @Description 默认采集器汇总的指标
+     * @return 未开启 metrics.enabled 时返回 null
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @Description 在事务中执行 callback, callback 中同一线程的 Mapper 调用共用一个连接,
+     *              正常返回时提交, 抛出异常时回滚; 已在事务中时直接加入外层事务.
+     *              CompletableFuture 方法在其他线程执行, 不加入事务
+     * @param callback 事务中执行的代码
+     * @return callback 的返回值
+     */
+    public <T> T inTransaction(TransactionCallback<T> callback) {
+        return inTransaction(-1, false, callback);
+    }
+
+    /**
+     * @Description 以指定的隔离级别和只读属性在事务中执行 callback
+     * @param isolation 隔离级别, 如 Connection.TRANSACTION_READ_COMMITTED, -1 表示使用连接的默认值
+     * @param readOnly 是否为只读事务
+     * @param callback 事务中执行的代码
+     * @return callback 的返回值
+     */
+    public <T> T inTransaction(int isolation, boolean readOnly, TransactionCallback<T> callback) {
+        if (currentTransaction.get() != null) {
+            return call(callback);
+        }
+
+        Connection conn;
+        try {
+            conn = dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        TransactionContext tx = new TransactionContext(conn);
+        int oldIsolation = -1;
+        boolean oldReadOnly = false;
+        boolean committed = false;
+        try {
+            if (isolation >= 0) {
+                oldIsolation = conn.getTransactionIsolation();
+                conn.setTransactionIsolation(isolation);
+            }
+            if (readOnly) {
+                oldReadOnly = conn.isReadOnly();
+                conn.setReadOnly(true);
+            }
+            conn.setAutoCommit(false);
+            currentTransaction.set(tx);
+
+            T result = call(callback);
+            conn.commit();
+            committed = true;
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            currentTransaction.remove();
+            // 事务中写过的表对应的缓存在事务结束后再清空一次, 丢弃事务期间其他线程加载的旧结果
+            for (QueryCache cache : tx.dirtyCaches) {
+                cache.invalidateAll();
+            }
+            try {
+                if (!committed) conn.rollback();
+                conn.setAutoCommit(true);
+                if (readOnly) conn.setReadOnly(oldReadOnly);
+                if (oldIsolation >= 0) conn.setTransactionIsolation(oldIsolation);
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+            } finally {
+                try {
+                    conn.close();
+                } catch (SQLException throwables) {
+                    throwables.printStackTrace();
+                }
+            }
+        }
+    }
 
-        parseMethod(clazz);
+    private static <T> T call(TransactionCallback<T> callback) {
+        try {
+            return callback.doInTransaction();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        Object mapper = Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
-            @Override
-            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-                if (Object.class.equals(method.getDeclaringClass())) {
-                    return method.invoke(this, args);
+    /**
+     * @Description 当前线程是否在事务中
+     */
+    public boolean isInTransaction() {
+        return currentTransaction.get() != null;
+    }
+
+    // 事务中返回事务的连接, 否则从连接池获取
+    private Connection getConnection() throws SQLException {
+        TransactionContext tx = currentTransaction.get();
+        return tx != null ? tx.connection : dataSource.getConnection();
+    }
+
+    // 配置了从库时, 不在事务中且未标注 @Primary 的查询从从库读取
+    private ReplicaSet.Replica route(MethodInfo methodInfo) {
+        if (replicas == null || methodInfo.primary || methodInfo.getSqlType() != SqlType.Query
+                || currentTransaction.get() != null) {
+            return null;
+        }
+        return replicas.select();
+    }
+
+    // 事务的连接在事务结束时才归还
+    private void closeConnection(Connection conn) throws SQLException {
+        if (conn != null && !isTransactional(conn)) conn.close();
+    }
+
+    private boolean isTransactional(Connection conn) {
+        TransactionContext tx = currentTransaction.get();
+        return tx != null && tx.connection == conn;
+    }
+
+    private Executor asyncExecutor() {
+        Executor executor = asyncExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = asyncExecutor;
+                if (executor == null) {
+                    int concurrency = dataSource instanceof MDataSource
+                            ? ((MDataSource) dataSource).getConfig().getMaxSize()
+                            : Runtime.getRuntime().availableProcessors();
+                    executor = AsyncExecutors.create(properties, concurrency);
+                    asyncExecutor = executor;
                 }
-                return execute(clazz.getName() + "." + method.getName(), args);
             }
-        });
+        }
+        return executor;
+    }
+
+    private <T> void createMapper(Class<T> clazz) {
+
+        String implName = mapperIndex.get(clazz.getName());
+        if (implName != null) {
+            createGeneratedMapper(clazz, implName);
+            return;
+        }
+
+        Map<Method, MethodInfo> methods = lazy ? new ConcurrentHashMap<>() : parseMethod(clazz);
+
+        Object mapper = Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz},
+                new MapperHandler(clazz, methods));
         proxyMap.put(clazz.getName(), mapper);
     }
 
-    private void parseMethod(Class<?> clazz) {
-        Method[] methods = clazz.getDeclaredMethods();
+    /**
+     * @ClassName MapperHandler
+     * @Description 动态代理的分派表. Proxy 每次传入的 Method 都是代理类中的同一个实例, 按引用查找 MethodInfo;
+     *              某个实例第一次调用时按 equals 解析后加入表中, 之后的调用不创建任何对象
+     */
+    private final class MapperHandler implements InvocationHandler {
+
+        private final Class<?> mapperClass;
+        // 解析出的全部方法, 按 equals 查找
+        private final Map<Method, MethodInfo> methods;
+        // 已调用过的 Method 实例, 写入时复制
+        private volatile IdentityHashMap<Method, MethodInfo> dispatch;
+
+        MapperHandler(Class<?> mapperClass, Map<Method, MethodInfo> methods) {
+            this.mapperClass = mapperClass;
+            this.methods = methods;
+            this.dispatch = new IdentityHashMap<>(methods);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            MethodInfo methodInfo = dispatch.get(method);
+            if (methodInfo == null) {
+                if (method.getDeclaringClass() == Object.class) {
+                    return invokeObjectMethod(proxy, method, args);
+                }
+                methodInfo = resolve(method);
+            }
+            return SqlMapperFactory.this.invoke(methodInfo, args);
+        }
+
+        private synchronized MethodInfo resolve(Method method) {
+            MethodInfo methodInfo = methods.get(method);
+            if (methodInfo == null) {
+                if (method.isDefault()) {
+                    throw new RuntimeException("动态代理不支持 default 方法, 请启用 MapperProcessor 生成实现类: " + method);
+                }
+                if (!lazy || !method.getDeclaringClass().isAssignableFrom(mapperClass) || Modifier.isStatic(method.getModifiers())) {
+                    throw new RuntimeException("无法代理此方法!!! " + method);
+                }
+                Method target = mostSpecific(mapperClass, method);
+                methodInfo = methods.get(target);
+                if (methodInfo == null) {
+                    methodInfo = parseMethod(mapperClass, target, mapperClass.getAnnotation(Cache.class), null, null);
+                    methods.put(target, methodInfo);
+                }
+                methods.put(method, methodInfo);
+            }
+            IdentityHashMap<Method, MethodInfo> table = new IdentityHashMap<>(dispatch);
+            table.put(method, methodInfo);
+            dispatch = table;
+            return methodInfo;
+        }
+
+        // 代理对象只与自身相等, toString 与生成的实现类格式一致
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return mapperClass.getSimpleName() + "Proxy[" + mapperClass.getName() + "]";
+                default:
+                    throw new UnsupportedOperationException(method.toString());
+            }
+        }
+    }
+
+    // 实例化编译期生成的实现类, SQL 已在编译期解析, 方法按下标分派
+    private void createGeneratedMapper(Class<?> clazz, String implName) {
+        try {
+            Class<?> implClass = Class.forName(implName, true, clazz.getClassLoader());
+            Method[] methods = (Method[]) implClass.getMethod("methods").invoke(null);
+            String[] sql = (String[]) implClass.getField("SQL").get(null);
+            String[][] tags = (String[][]) implClass.getField("TAGS").get(null);
 
+            Cache mapperCache = clazz.getAnnotation(Cache.class);
+            AtomicReferenceArray<MethodInfo> methodInfos = new AtomicReferenceArray<>(methods.length);
+            if (!lazy) {
+                for (int i = 0; i < methods.length; i++) {
+                    methodInfos.set(i, parseMethod(clazz, methods[i], mapperCache, sql[i], tags[i]));
+                }
+            }
+
+            MapperInvoker invoker = (index, args) -> {
+                MethodInfo methodInfo = methodInfos.get(index);
+                if (methodInfo == null) {
+                    synchronized (methodInfos) {
+                        methodInfo = methodInfos.get(index);
+                        if (methodInfo == null) {
+                            methodInfo = parseMethod(clazz, methods[index], mapperCache, sql[index], tags[index]);
+                            methodInfos.set(index, methodInfo);
+                        }
+                    }
+                }
+                return invoke(methodInfo, args);
+            };
+            Object mapper = implClass.getConstructor(MapperInvoker.class).newInstance(invoker);
+            proxyMap.put(clazz.getName(), mapper);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("无法加载 " + clazz.getName() + " 的实现类 " + implName, e);
+        }
+    }
+
+    // 解析 Mapper 中的抽象方法, static 和 default 方法不代理
+    private Map<Method, MethodInfo> parseMethod(Class<?> clazz) {
+        // 包括从父接口继承的方法
+        Method[] methods = clazz.getMethods();
+        Cache mapperCache = clazz.getAnnotation(Cache.class);
+
+        Map<Method, MethodInfo> methodInfos = new HashMap<>();
         for (Method method : methods) {
-            MethodInfo methodInfo = new MethodInfo();
-
-            methodInfo.setParam(method.getParameters());
-
-            methodInfo.returnType = method.getReturnType();
-            methodInfo.genericType = parseGeneric(method);
-
-            String sql = null;
-            if (method.isAnnotationPresent(Insert.class)) {
-                methodInfo.setSqlType(SqlType.Insert);
-                Insert insert = method.getAnnotation(Insert.class);
-                sql = insert.sql();
-                methodInfo.generatedKey = insert.generatedKey();
-            } else if (method.isAnnotationPresent(Delete.class)) {
-                methodInfo.setSqlType(SqlType.Delete);
-                Delete delete = method.getAnnotation(Delete.class);
-                sql = delete.sql();
-            } else if (method.isAnnotationPresent(Update.class)) {
-                methodInfo.setSqlType(SqlType.Update);
-                Update update = method.getAnnotation(Update.class);
-                sql = update.sql();
-            } else if (method.isAnnotationPresent(Query.class)) {
-                methodInfo.setSqlType(SqlType.Query);
-                Query query = method.getAnnotation(Query.class);
-                sql = query.sql();
-            } else {
-                throw new RuntimeException("无法代理此方法!!!");
+            if (Modifier.isStatic(method.getModifiers()) || method.isDefault() || method.isSynthetic()) continue;
+            Method target = mostSpecific(clazz, method);
+            MethodInfo methodInfo = methodInfos.get(target);
+            if (methodInfo == null) methodInfo = parseMethod(clazz, target, mapperCache, null, null);
+            // 子接口重新声明的方法, 父接口中的 Method 也分派到子接口的解析结果
+            methodInfos.put(target, methodInfo);
+            methodInfos.put(method, methodInfo);
+        }
+        return methodInfos;
+    }
+
+    // 同一签名在子接口中重新声明时使用子接口中的方法
+    private static Method mostSpecific(Class<?> clazz, Method method) {
+        Method best = method;
+        for (Method m : clazz.getMethods()) {
+            if (m.getName().equals(method.getName()) && Arrays.equals(m.getParameterTypes(), method.getParameterTypes())
+                    && best.getDeclaringClass().isAssignableFrom(m.getDeclaringClass())) {
+                best = m;
             }
+        }
+        return best;
+    }
+
+    // Mapper 类名.方法名, 有重载时加上参数类型的简单名以区分, 如 UserMapper.find(long,String)
+    private static String methodName(Class<?> clazz, Method method) {
+        String name = clazz.getName() + "." + method.getName();
+        Set<List<Class<?>>> overloads = new HashSet<>();
+        for (Method m : clazz.getMethods()) {
+            if (m.getName().equals(method.getName())) overloads.add(Arrays.asList(m.getParameterTypes()));
+        }
+        if (overloads.size() < 2) return name;
+        StringJoiner params = new StringJoiner(",", "(", ")");
+        for (Class<?> type : method.getParameterTypes()) {
+            params.add(type.getSimpleName());
+        }
+        return name + params;
+    }
 
-            methodInfo.sql = sql.replaceAll("#\\{.*?\\}", "?");
-            methodInfo.tags = parseSql(sql);
+    /**
+     * @Description 取得 Mapper 方法在本工厂中的 MethodInfo: 共享的元数据只解析一次, 每个工厂复制一份后
+     *              填入默认的 fetchSize/batchSize 和自己的查询缓存
+     * @param preparedSql 编译期已将 #{...} 替换为 ? 的 SQL, 为 null 时在此解析注解中的 SQL
+     * @param tags 编译期解析出的标签
+     */
+    private MethodInfo parseMethod(Class<?> clazz, Method method, Cache mapperCache, String preparedSql, String[] tags) {
+        MethodInfo parsed = PARSED.get(clazz).computeIfAbsent(method, m -> parseMethod(clazz, m, preparedSql, tags));
+        if (parsed.sharded && shards == null) throw new RuntimeException("未配置 shards, 不能使用 @Shard: " + method);
 
-            methodMap.put(clazz.getName()+"."+method.getName(), methodInfo);
+        MethodInfo methodInfo = parsed.copy();
+        if (methodInfo.fetchSize == 0) methodInfo.fetchSize = defaultFetchSize;
+        if (methodInfo.batchSize == 0) methodInfo.batchSize = defaultBatchSize;
+        parseCache(method, methodInfo, mapperCache);
+        if (methodInfo.idTarget != null) {
+            GeneratedId generatedId = method.getAnnotation(GeneratedId.class);
+            boolean hilo = generatedId.strategy() == GeneratedId.Strategy.HILO;
+            String query = generatedId.query();
+            methodInfo.idAllocator = idAllocators.computeIfAbsent(
+                    generatedId.strategy() + ":" + generatedId.blockSize() + ":" + query,
+                    k -> new IdAllocator(query, hilo, generatedId.blockSize()));
+        }
+        if (methodInfo.writeBehind) {
+            // 一组调用作为批量方法执行, 每个元素是一次调用的全部实参
+            MethodInfo group = methodInfo.copy();
+            group.batchIndex = 0;
+            group.groupRows = true;
+            group.returnType = group.generatedKey ? List.class : int[].class;
+            WriteBehind writeBehind = method.getAnnotation(WriteBehind.class);
+            group.batchSize = writeBehind.size();
+            methodInfo.writeBuffer = new WriteBehindBuffer(rows -> groupResults(group, rows.size(), execute(group, new Object[]{rows})),
+                    writeBehind.size(), writeBehind.delay(), writeBehind.capacity(), methodInfo.name);
+        }
+        if (methodInfo.coalesceLoad != null) {
+            MethodInfo load = methodInfo.coalesceLoad.copy();
+            if (load.fetchSize == 0) load.fetchSize = defaultFetchSize;
+            methodInfo.coalesceLoad = load;
+            Coalesce coalesce = method.getAnnotation(Coalesce.class);
+            methodInfo.coalescer = new KeyCoalescer(keys -> (List<?>) execute(load, new Object[]{keys}),
+                    ShardSet.valueOf(coalesce.key(), load.genericType), methodInfo.returnType == List.class,
+                    coalesce.window(), coalesce.maxKeys(), command -> asyncExecutor().execute(command));
         }
+
+        methodMap.put(methodInfo.name, methodInfo);
+        return methodInfo;
     }
 
-    private List<String> parseSql(String sql) {
+    // 解析与工厂无关的元数据, 结果在工厂之间共享, 不能修改
+    private static MethodInfo parseMethod(Class<?> clazz, Method method, String preparedSql, String[] tags) {
+        MethodInfo methodInfo = new MethodInfo();
+        methodInfo.mapperName = clazz.getName();
+        methodInfo.name = methodName(clazz, method);
+        methodInfo.primary = method.isAnnotationPresent(Primary.class) || clazz.isAnnotationPresent(Primary.class);
+
+        methodInfo.setParam(method.getParameters());
+        Parameter[] parameters = method.getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            Type type = parameters[i].getParameterizedType();
+            if (type instanceof TypeVariable) methodInfo.setParamType(i, rawType(resolveType(clazz, method, type)));
+        }
+
+        Class<?> returnType = method.getReturnType();
+        Type genericReturnType = method.getGenericReturnType();
+        if (genericReturnType instanceof TypeVariable) {
+            genericReturnType = resolveType(clazz, method, genericReturnType);
+            returnType = rawType(genericReturnType);
+        }
+        // CompletableFuture<T> 按 T 映射结果, 在线程池中执行
+        if (returnType == CompletableFuture.class) {
+            methodInfo.async = true;
+            genericReturnType = genericReturnType instanceof ParameterizedType
+                    ? resolveType(clazz, method, ((ParameterizedType) genericReturnType).getActualTypeArguments()[0]) : Object.class;
+            returnType = rawType(genericReturnType);
+            if (returnType == Void.class) returnType = void.class;
+        }
+        // Flow.Publisher<T> 按订阅者的请求逐行发送, 内部按 Cursor<T> 查询
+        if (FlowPublishers.isPublisher(returnType)) {
+            methodInfo.publisher = true;
+            returnType = Cursor.class;
+        }
+        methodInfo.returnType = returnType;
+        methodInfo.genericType = parseGeneric(clazz, method, returnType, genericReturnType);
+
+        String sql = null;
+        if (method.isAnnotationPresent(Insert.class)) {
+            methodInfo.setSqlType(SqlType.Insert);
+            Insert insert = method.getAnnotation(Insert.class);
+            sql = insert.sql();
+            methodInfo.generatedKey = insert.generatedKey();
+        } else if (method.isAnnotationPresent(Delete.class)) {
+            methodInfo.setSqlType(SqlType.Delete);
+            Delete delete = method.getAnnotation(Delete.class);
+            sql = delete.sql();
+        } else if (method.isAnnotationPresent(Update.class)) {
+            methodInfo.setSqlType(SqlType.Update);
+            Update update = method.getAnnotation(Update.class);
+            sql = update.sql();
+        } else if (method.isAnnotationPresent(Query.class)) {
+            methodInfo.setSqlType(SqlType.Query);
+            Query query = method.getAnnotation(Query.class);
+            sql = query.sql();
+            methodInfo.fetchSize = query.fetchSize();
+            methodInfo.rowMapper = createRowMapper(methodInfo);
+            parseStreaming(method, methodInfo);
+            if (method.isAnnotationPresent(ResultMap.class)) {
+                parseResultMap(method, methodInfo, method.getAnnotation(ResultMap.class));
+            }
+        } else {
+            throw new RuntimeException("无法代理此方法!!!");
+        }
+        if (methodInfo.publisher && methodInfo.getSqlType() != SqlType.Query) {
+            throw new RuntimeException("只有查询方法可以返回 Flow.Publisher: " + method);
+        }
+
+        if (method.isAnnotationPresent(Batch.class)) {
+            parseBatch(method, methodInfo);
+        }
+        if (method.isAnnotationPresent(GeneratedId.class)) {
+            parseGeneratedId(method, methodInfo, method.getAnnotation(GeneratedId.class));
+        }
+
+        ParamBinder[] binders = compileBinders(methodInfo, preparedSql == null ? parseSql(sql) : Arrays.asList(tags));
+        if (sql.contains("/*#if") || hasCollection(binders)) {
+            // 动态 SQL 按实参确定形状, 编译期解析的 SQL 不适用
+            if (methodInfo.batchIndex >= 0) throw new RuntimeException("@Batch 方法不支持动态 SQL: " + method);
+            methodInfo.template = SqlTemplate.parse(sql, tag -> compileBinder(methodInfo, tag));
+            methodInfo.sql = sql;
+            methodInfo.binders = methodInfo.template.getBinders();
+        } else {
+            methodInfo.sql = preparedSql == null ? sql.replaceAll("#\\{.*?\\}", "?") : preparedSql;
+            methodInfo.binders = binders;
+            methodInfo.shape = new SqlTemplate.Shape(methodInfo.sql, binders, new int[binders.length]);
+        }
+
+        if (method.isAnnotationPresent(WriteBehind.class)) {
+            parseWriteBehind(method, methodInfo, method.getAnnotation(WriteBehind.class));
+        }
+        if (method.isAnnotationPresent(Coalesce.class)) {
+            parseCoalesce(method, methodInfo, method.getAnnotation(Coalesce.class));
+        }
+
+        Shard mapperShard = clazz.getAnnotation(Shard.class);
+        Shard methodShard = method.getAnnotation(Shard.class);
+        if (mapperShard != null || methodShard != null) {
+            parseShard(method, methodInfo, mapperShard, methodShard);
+        }
+        return methodInfo;
+    }
+
+    /**
+     * @Description 检查查询中按流读取的结果: InputStream/Reader/ReadableByteChannel 结果和 Bean 属性只在当前行有效,
+     *              只能用于返回 Stream/Iterator/Cursor 的方法, 订阅者可能在其他线程处理行, Flow.Publisher 也不能使用; OutputStream/Writer/WritableByteChannel 参数接收每行第一列的内容,
+     *              方法返回 void 或写入的总长度 long
+     */
+    private static void parseStreaming(Method method, MethodInfo methodInfo) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (!Lobs.isSink(parameterTypes[i])) continue;
+            if (methodInfo.sinkIndex >= 0) throw new RuntimeException("查询方法只能有一个输出流参数: " + method);
+            Class<?> returnType = methodInfo.returnType;
+            if (returnType != void.class && returnType != long.class && returnType != Long.class) {
+                throw new RuntimeException("有输出流参数的查询方法只能返回 void 或 long: " + method);
+            }
+            methodInfo.sinkIndex = i;
+        }
+        if (isStreaming(methodInfo.returnType) && !methodInfo.publisher) return;
+        Class<?> target = isContainer(methodInfo.returnType) ? methodInfo.genericType : methodInfo.returnType;
+        if (Lobs.isStream(target) || (methodInfo.rowMapper != null && methodInfo.rowMapper.isStreaming())) {
+            throw new RuntimeException("InputStream/Reader/ReadableByteChannel 结果只在当前行有效, 只能用于返回 Stream/Iterator/Cursor 的方法: " + method);
+        }
+    }
+
+    // @ResultMap 需要读取全部行后合并, 只用于返回 Bean 或 List<Bean> 的方法
+    private static void parseResultMap(Method method, MethodInfo methodInfo, ResultMap resultMap) {
+        if (methodInfo.rowMapper == null || isStreaming(methodInfo.returnType)) {
+            throw new RuntimeException("@ResultMap 只能用于返回 Bean 或 List<Bean> 的方法: " + method);
+        }
+        methodInfo.resultMap = new ResultMapReader<>(methodInfo.rowMapper.getType(), resultMap);
+    }
+
+    private static void parseWriteBehind(Method method, MethodInfo methodInfo, WriteBehind writeBehind) {
+        if (methodInfo.getSqlType() == SqlType.Query || methodInfo.batchIndex >= 0) {
+            throw new RuntimeException("@WriteBehind 只能用于非 @Batch 的 @Insert/@Update/@Delete 方法: " + method);
+        }
+        if (methodInfo.template != null) throw new RuntimeException("@WriteBehind 方法不支持动态 SQL: " + method);
+        if (writeBehind.size() <= 0 || writeBehind.delay() < 0 || writeBehind.capacity() < writeBehind.size()) {
+            throw new RuntimeException("@WriteBehind 的 size 必须大于 0, delay 不能小于 0, capacity 不能小于 size: " + method);
+        }
+        methodInfo.writeBehind = true;
+    }
+
+    // 批量执行的结果拆分为每行的结果: 自增主键个数与行数一致时按顺序对应, 否则为更新数
+    private static Object[] groupResults(MethodInfo group, int rows, Object ret) {
+        Object[] results = new Object[rows];
+        if (ret instanceof List) {
+            List<?> keys = (List<?>) ret;
+            for (int i = 0; i < rows && keys.size() == rows; i++) {
+                results[i] = keys.get(i);
+            }
+        } else if (ret instanceof int[]) {
+            int[] counts = (int[]) ret;
+            for (int i = 0; i < rows && i < counts.length; i++) {
+                results[i] = counts[i];
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @Description 解析 @Coalesce: 按键集合查询的方法与原方法参数名相同, 唯一的参数声明为 List,
+     *              结果为原方法返回的 Bean/Map 的 List
+     */
+    private static void parseCoalesce(Method method, MethodInfo methodInfo, Coalesce coalesce) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        if (methodInfo.getSqlType() != SqlType.Query || parameterTypes.length != 1) {
+            throw new RuntimeException("@Coalesce 只能用于只有一个参数的 @Query 方法: " + method);
+        }
+        if (Iterable.class.isAssignableFrom(parameterTypes[0]) || parameterTypes[0].isArray()) {
+            throw new RuntimeException("@Coalesce 方法的参数必须是单个键: " + method);
+        }
+        Class<?> returnType = methodInfo.returnType;
+        Class<?> elementType = returnType == List.class ? methodInfo.genericType : returnType;
+        if (isStreaming(returnType) || methodInfo.sinkIndex >= 0 || methodInfo.resultMap != null
+                || (methodInfo.rowMapper == null && !elementType.isAssignableFrom(Map.class))) {
+            throw new RuntimeException("@Coalesce 方法只能返回 Bean/Map 或它们的 List: " + method);
+        }
+        if (coalesce.window() < 0 || coalesce.maxKeys() <= 0) {
+            throw new RuntimeException("@Coalesce 的 window 不能小于 0, maxKeys 必须大于 0: " + method);
+        }
+
+        MethodInfo load = new MethodInfo();
+        load.setSqlType(SqlType.Query);
+        load.mapperName = methodInfo.mapperName;
+        load.name = methodInfo.name + "[coalesce]";
+        load.primary = methodInfo.primary;
+        load.fetchSize = methodInfo.fetchSize;
+        load.rethrow = true;
+        load.setParam(method.getParameters());
+        load.setParamType(0, List.class);
+        load.returnType = List.class;
+        load.genericType = elementType.isAssignableFrom(Map.class) ? Map.class : elementType;
+        load.rowMapper = methodInfo.rowMapper;
+        load.template = SqlTemplate.parse(coalesce.sql(), tag -> compileBinder(load, tag));
+        if (!load.template.isDynamic()) {
+            throw new RuntimeException("@Coalesce 的 sql 中缺少键集合参数 #{" + load.paramNames[0] + "}: " + method);
+        }
+        load.sql = coalesce.sql();
+        load.binders = load.template.getBinders();
+        // 检查 key 属性是否存在
+        ShardSet.valueOf(coalesce.key(), load.genericType);
+        methodInfo.coalesceLoad = load;
+    }
+
+    /**
+     * @Description 解析分片键和扇出查询的合并方式. 方法上的分片键优先, Mapper 上的分片键只用于含有该参数的方法,
+     *              其他方法视为没有分片键
+     */
+    private static void parseShard(Method method, MethodInfo methodInfo, Shard mapperShard, Shard methodShard) {
+        if (methodInfo.batchIndex >= 0) throw new RuntimeException("分片 Mapper 不支持 @Batch: " + method);
+        if (methodInfo.sinkIndex >= 0) throw new RuntimeException("分片 Mapper 不支持输出流参数: " + method);
+        if (methodInfo.coalesceLoad != null) throw new RuntimeException("分片 Mapper 不支持 @Coalesce: " + method);
+        if (methodInfo.writeBehind) throw new RuntimeException("分片 Mapper 不支持 @WriteBehind: " + method);
+        methodInfo.sharded = true;
+        if (methodShard != null && !methodShard.key().isEmpty()) {
+            methodInfo.shardKey = compileBinder(methodInfo, methodShard.key());
+        } else if (mapperShard != null && !mapperShard.key().isEmpty()) {
+            String key = mapperShard.key();
+            int dot = key.indexOf('.');
+            if (methodInfo.paramIndex.containsKey(dot < 0 ? key : key.substring(0, dot))) {
+                methodInfo.shardKey = compileBinder(methodInfo, key);
+            }
+        }
+        if (methodShard != null) {
+            methodInfo.shardOrder = ShardSet.comparator(methodShard.orderBy(),
+                    methodInfo.returnType == List.class ? methodInfo.genericType : null);
+            methodInfo.shardLimit = methodShard.limit();
+            methodInfo.shardMerge = methodShard.merge();
+            if (methodInfo.shardMerge == Shard.Merge.SUM && !ShardSet.isSummable(methodInfo.returnType)) {
+                throw new RuntimeException("@Shard(merge = SUM) 只支持返回 int、long 或 BigDecimal 的方法: " + method);
+            }
+        }
+    }
+
+    // 为查询方法创建结果缓存, 记录写方法需要清空的表
+    private void parseCache(Method method, MethodInfo methodInfo, Cache mapperCache) {
+        Cache cache = method.isAnnotationPresent(Cache.class) ? method.getAnnotation(Cache.class) : mapperCache;
+        if (cache == null) return;
+
+        if (methodInfo.getSqlType() != SqlType.Query) {
+            if (method.isAnnotationPresent(Cache.class)) methodInfo.writeTables = cache.tables();
+            return;
+        }
+        if (methodInfo.coalesceLoad != null) {
+            if (method.isAnnotationPresent(Cache.class)) {
+                throw new RuntimeException("@Cache 不能与 @Coalesce 同时使用: " + method);
+            }
+            return;
+        }
+        if (isStreaming(methodInfo.returnType) || methodInfo.sinkIndex >= 0) {
+            if (method.isAnnotationPresent(Cache.class)) {
+                throw new RuntimeException("@Cache 不能用于返回 Stream/Iterator/Cursor 或有输出流参数的方法: " + method);
+            }
+            return;
+        }
+
+        methodInfo.cache = new QueryCache(cache.size(), cache.ttl());
+        mapperCaches.computeIfAbsent(methodInfo.mapperName, k -> new CopyOnWriteArrayList<>()).add(methodInfo.cache);
+        for (String table : cache.tables()) {
+            tableCaches.computeIfAbsent(table.toLowerCase(), k -> new CopyOnWriteArrayList<>()).add(methodInfo.cache);
+        }
+    }
+
+    // 写操作后清空同一 Mapper 和所修改表的缓存
+    private void invalidateCaches(MethodInfo methodInfo) {
+        TransactionContext tx = currentTransaction.get();
+        invalidate(mapperCaches.get(methodInfo.mapperName), tx);
+        for (String table : methodInfo.writeTables) {
+            invalidate(tableCaches.get(table.toLowerCase()), tx);
+        }
+    }
+
+    private void invalidate(List<QueryCache> caches, TransactionContext tx) {
+        if (caches == null) return;
+        for (QueryCache cache : caches) {
+            cache.invalidateAll();
+            if (tx != null) tx.dirtyCaches.add(cache);
+        }
+    }
+
+    /**
+     * @Description 查询方法的缓存统计
+     * @param methodName Mapper 类名.方法名, 重载的方法加上参数类型, 如 UserMapper.find(long,String)
+     * @return 统计快照, 方法未开启缓存时返回 null
+     */
+    public CacheStats getCacheStats(String methodName) {
+        MethodInfo methodInfo = methodMap.get(methodName);
+        return methodInfo == null || methodInfo.cache == null ? null : methodInfo.cache.stats();
+    }
+
+    /**
+     * @Description 清空 Mapper 中所有查询方法的缓存
+     * @param clazz Mapper 接口
+     */
+    public void clearCache(Class<?> clazz) {
+        invalidate(mapperCaches.get(clazz.getName()), null);
+    }
+
+    // 找到批量方法的 Iterable 参数, 该参数的标签按元素类型编译
+    private static void parseBatch(Method method, MethodInfo methodInfo) {
+        if (methodInfo.getSqlType() == SqlType.Query) {
+            throw new RuntimeException("@Batch 只能用于 @Insert/@Update/@Delete 方法: " + method);
+        }
+        // 批量方法返回每行的更新数, generatedKey 时可以返回全部主键
+        Class<?> returnType = method.getReturnType();
+        if (returnType != void.class && returnType != int[].class
+                && !(returnType == List.class && methodInfo.generatedKey)) {
+            throw new RuntimeException("@Batch 方法的返回值只能是 void 或 int[], generatedKey 时可以是 List: " + method);
+        }
+        Parameter[] parameters = method.getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            if (!Iterable.class.isAssignableFrom(parameters[i].getType())) continue;
+
+            Class<?> elementType = Object.class;
+            Type type = parameters[i].getParameterizedType();
+            if (type instanceof ParameterizedType) {
+                Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+                if (arg instanceof Class) elementType = (Class<?>) arg;
+            }
+            methodInfo.batchIndex = i;
+            methodInfo.setParamType(i, elementType);
+            int size = method.getAnnotation(Batch.class).size();
+            methodInfo.batchSize = size;
+            return;
+        }
+        throw new RuntimeException("@Batch 方法缺少 List/Iterable 参数: " + method);
+    }
+
+    /**
+     * @Description 解析 @GeneratedId 的主键位置: 只有参数名时替换实参, 否则通过属性的 setter 设置.
+     *              @Batch 方法中集合参数的类型已替换为元素类型, 属性按元素解析
+     */
+    private static void parseGeneratedId(Method method, MethodInfo methodInfo, GeneratedId generatedId) {
+        if (methodInfo.getSqlType() != SqlType.Insert) {
+            throw new RuntimeException("@GeneratedId 只能用于 @Insert 方法: " + method);
+        }
+        if (generatedId.blockSize() <= 0) throw new RuntimeException("@GeneratedId 的 blockSize 必须大于 0: " + method);
+        String[] names = generatedId.property().split("\\.");
+        int argIndex = methodInfo.getParamIndex(names[0]);
+        Class<?> type = methodInfo.getParamType(names[0]);
+        if (names.length == 1 && argIndex == methodInfo.batchIndex) {
+            throw new RuntimeException("@Batch 方法的 @GeneratedId 必须是元素的属性: " + method);
+        }
+        for (int i = 1; i < names.length - 1; i++) {
+            type = BeanUtil.getterHandle(type, names[i]).type().returnType();
+        }
+        if (names.length > 1) {
+            MethodHandle setter = BeanUtil.setterHandles(type).get(names[names.length - 1]);
+            if (setter == null) {
+                throw new RuntimeException(type.getName() + " 中没有属性 " + names[names.length - 1] + " 的 setter");
+            }
+            type = setter.type().parameterType(1);
+            methodInfo.idSetter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+        if (type != long.class && type != Long.class && type != int.class && type != Integer.class
+                && type != Object.class && type != Number.class) {
+            throw new RuntimeException("@GeneratedId 的属性必须是 long/Long/int/Integer 类型: " + method);
+        }
+        methodInfo.idTarget = compileBinder(methodInfo, generatedId.property());
+        methodInfo.idArgIndex = argIndex;
+        methodInfo.idInt = type == int.class || type == Integer.class;
+    }
+
+    private static List<String> parseSql(String sql) {
         Pattern reg = Pattern.compile("#\\{(.*?)\\}");
         Matcher matcher = reg.matcher(sql);
 
@@ -110,44 +929,99 @@ public class SqlMapperFactory {
         return tags;
     }
 
-    private String[] parseTag(String tag) {
-        return tag.split("\\.");
+    // 将 #{...} 标签编译为参数绑定器, 标签引用不存在的参数时在解析阶段报错
+    private static ParamBinder[] compileBinders(MethodInfo methodInfo, List<String> tags) {
+        ParamBinder[] binders = new ParamBinder[tags.size()];
+        for (int i = 0; i < binders.length; i++) {
+            binders[i] = compileBinder(methodInfo, tags.get(i));
+        }
+        return binders;
     }
 
-    private static  <T> Class<?> parseGeneric(Method method) {
-        Class<?> returnType = method.getReturnType();
+    private static ParamBinder compileBinder(MethodInfo methodInfo, String tag) {
+        int dot = tag.indexOf('.');
+        String paramName = dot < 0 ? tag : tag.substring(0, dot);
+        return ParamBinder.compile(tag, methodInfo.getParamIndex(paramName), methodInfo.getParamType(paramName));
+    }
+
+    private static boolean hasCollection(ParamBinder[] binders) {
+        for (ParamBinder binder : binders) {
+            if (binder.isCollection()) return true;
+        }
+        return false;
+    }
 
-        if (returnType.isAssignableFrom(void.class)
-                || returnType.isAssignableFrom(Map.class)
-                || !returnType.isAssignableFrom(List.class)) {
+    // 解析 List/Stream/Iterator/Cursor 返回值的元素类型
+    private static Class<?> parseGeneric(Class<?> mapper, Method method, Class<?> returnType, Type genericReturnType) {
+        if (!isContainer(returnType)) {
             return null;
         }
+        if (!(genericReturnType instanceof ParameterizedType)) {
+            return Object.class;
+        }
 
-        ParameterizedType type = (ParameterizedType) method.getGenericReturnType();
+        Type element = resolveType(mapper, method, ((ParameterizedType) genericReturnType).getActualTypeArguments()[0]);
+        Class<?> clazz = rawType(element);
+        return Map.class.isAssignableFrom(clazz) ? Map.class : clazz;
+    }
 
-        Type[] types = type.getActualTypeArguments();
+    /**
+     * @Description 父接口中声明的方法使用的类型变量按 Mapper 继承时的实参替换, 如 UserMapper extends BaseMapper<User> 中的 T
+     * @return 替换后的类型, 不是父接口的类型变量或无法确定时返回 type
+     */
+    private static Type resolveType(Class<?> mapper, Method method, Type type) {
+        Class<?> declaring = method.getDeclaringClass();
+        if (!(type instanceof TypeVariable) || declaring == mapper
+                || ((TypeVariable<?>) type).getGenericDeclaration() != declaring) {
+            return type;
+        }
+        Type actual = typeArgument(mapper, declaring, (TypeVariable<?>) type);
+        return actual != null ? actual : type;
+    }
 
-        if (types[0].getTypeName().startsWith("java.util.Map")) {
-            return Map.class;
+    // 在 type 的父接口中找到 declaring, 返回 variable 以 type 的类型参数表示的实参
+    private static Type typeArgument(Class<?> type, Class<?> declaring, TypeVariable<?> variable) {
+        for (Type parent : type.getGenericInterfaces()) {
+            Class<?> raw = rawType(parent);
+            if (!declaring.isAssignableFrom(raw)) continue;
+            Type actual = raw == declaring ? variable : typeArgument(raw, declaring, variable);
+            // actual 为 raw 的类型参数时按 parent 的实参替换
+            if (actual instanceof TypeVariable && parent instanceof ParameterizedType) {
+                int i = Arrays.asList(raw.getTypeParameters()).indexOf(actual);
+                if (i >= 0) return ((ParameterizedType) parent).getActualTypeArguments()[i];
+            }
+            return actual == variable ? null : actual;
         }
+        return null;
+    }
 
-        Class<?> clazz = null;
-        try {
-            clazz = Class.forName(types[0].getTypeName());
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+    private static Class<?> rawType(Type type) {
+        if (type instanceof ParameterizedType) {
+            type = ((ParameterizedType) type).getRawType();
         }
-        return clazz;
+        return type instanceof Class ? (Class<?>) type : Object.class;
     }
 
-    private boolean resultSetEmpty(ResultSet rs) throws SQLException {
-        rs.last();
-        if (rs.getRow() == 0) {
-            rs.first();
-            return true;
+    private static boolean isContainer(Class<?> returnType) {
+        return returnType == List.class || isStreaming(returnType);
+    }
+
+    // 逐行读取的返回值类型, 执行后不关闭连接; 返回的 Iterator 为 CloseableIterator, 未遍历完时需要 close
+    private static boolean isStreaming(Class<?> returnType) {
+        return returnType == Stream.class || returnType == Iterator.class || returnType == CloseableIterator.class
+                || returnType == Cursor.class;
+    }
+
+    // 查询结果为 Bean 或 List<Bean> 时创建行映射器
+    private static BeanRowMapper<?> createRowMapper(MethodInfo methodInfo) {
+        Class<?> target = isContainer(methodInfo.returnType)
+                ? methodInfo.genericType : methodInfo.returnType;
+        if (target == null || target.isPrimitive() || target.isInterface() || target.isArray()
+                || target.isAssignableFrom(Map.class) || isBaseType(target) || target == ColumnarResult.class
+                || Lobs.isStream(target)) {
+            return null;
         }
-        rs.first();
-        return false;
+        return new BeanRowMapper<>(target);
     }
 
     private void resultSetToMap(Map<String, Object> map, ResultSet rs) throws SQLException {
@@ -158,42 +1032,42 @@ public class SqlMapperFactory {
         }
     }
 
-    private Object resultSetToObject(Class<?> clazz, ResultSet rs) throws SQLException {
-        Map<String, Object> map = new HashMap<>();
-        resultSetToMap(map, rs);
-        return BeanUtil.objectForMap(map, clazz);
-    }
-
-    private void resultSetToListMap(List<Map<String, Object>> list, ResultSet rs) throws SQLException {
-        ResultSetMetaData metaData = rs.getMetaData();
-        int columnCount = metaData.getColumnCount();
-        rs.absolute(0);
-        while (rs.next()) {
-            Map<String, Object> map = new HashMap<>();
-            for (int i = 1;i <= columnCount;i++) {
-                resultSetToMap(map, rs);
-            }
-            list.add(map);
+    // 按元素类型创建行读取器, Bean 的映射计划在此时解析
+    private RowReader<?> rowReader(MethodInfo methodInfo, Class<?> elementType, ResultSet rs) throws SQLException {
+        if (elementType.isAssignableFrom(Map.class)) {
+            return r -> {
+                Map<String, Object> map = new HashMap<>();
+                resultSetToMap(map, r);
+                return map;
+            };
         }
-    }
-
-    private void resultSetToListBean(List<Object> list, Class<?> clazz, ResultSet rs) throws SQLException {
-        List<Map<String, Object>> mapList = new ArrayList<>();
-        resultSetToListMap(mapList, rs);
-
-        for (Map<String, Object> map : mapList) {
-            list.add(BeanUtil.objectForMap(map, clazz));
+        if (Lobs.isStream(elementType)) {
+            return r -> Lobs.read(r, 1, elementType);
+        }
+        if (methodInfo.rowMapper == null) {
+            return scalarReader(elementType);
         }
+        return methodInfo.rowMapper.plan(rs);
     }
 
-    private void resultSetToListBase(List<Object> list, ResultSet rs) throws SQLException {
-        rs.absolute(0);
-        while (rs.next()) {
-            list.add(rs.getObject(1));
+    // 单列结果按声明类型读取, 驱动返回的类型可能不同, 如 sum 返回 BigInteger
+    private static RowReader<?> scalarReader(Class<?> type) {
+        if (type == BigDecimal.class) {
+            return r -> r.getBigDecimal(1);
         }
+        if (type == BigInteger.class) {
+            return r -> {
+                BigDecimal value = r.getBigDecimal(1);
+                return value == null ? null : value.toBigInteger();
+            };
+        }
+        if (isTemporal(type)) {
+            return r -> r.getObject(1, type);
+        }
+        return r -> r.getObject(1);
     }
 
-    private boolean isBaseType(Class<?> clazz) {
+    private static boolean isBaseType(Class<?> clazz) {
         return clazz.isAssignableFrom(Byte.class)
                 || clazz.isAssignableFrom(Short.class)
                 || clazz.isAssignableFrom(Integer.class)
@@ -203,86 +1077,306 @@ public class SqlMapperFactory {
                 || clazz.isAssignableFrom(Character.class)
                 || clazz.isAssignableFrom(Boolean.class)
                 || clazz.isAssignableFrom(String.class)
-                || clazz.isAssignableFrom(Date.class);
+                || clazz.isAssignableFrom(Date.class)
+                || clazz == BigDecimal.class
+                || clazz == BigInteger.class
+                || isTemporal(clazz);
     }
 
-    private Object execute(String methodName ,Object[] args) {
+    // java.time 中的日期时间类型, 由驱动通过 getObject(column, type) 转换
+    private static boolean isTemporal(Class<?> clazz) {
+        return clazz.getPackage() != null && "java.time".equals(clazz.getPackage().getName());
+    }
 
-        Object ret = null;
+    private Object invoke(MethodInfo methodInfo, Object[] args) {
+        // 事务中的写操作需要随事务提交或回滚, 直接执行
+        if (methodInfo.writeBuffer != null && currentTransaction.get() == null) {
+            CompletableFuture<Object> future = methodInfo.writeBuffer.submit(args);
+            if (methodInfo.async) return future;
+            try {
+                Object ret = future.join();
+                return methodInfo.returnType == void.class ? null : ret;
+            } catch (CompletionException e) {
+                throw ParamBinder.propagate(e.getCause());
+            }
+        }
+        // 事务中的调用可能读到未提交的数据, 不与其他线程合并
+        if (methodInfo.coalescer != null && currentTransaction.get() == null) {
+            CompletableFuture<Object> future = methodInfo.coalescer.load(args[0]);
+            // 相同键的调用可能共用一个 Future, 返回副本以免调用方完成或取消它
+            if (methodInfo.async) return future.thenApply(result -> result);
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw ParamBinder.propagate(e.getCause());
+            }
+        }
+        if (methodInfo.async) {
+            return CompletableFuture.supplyAsync(() -> execute(methodInfo, args), asyncExecutor());
+        }
+        if (methodInfo.publisher) {
+            return publish(methodInfo, args);
+        }
+        return execute(methodInfo, args);
+    }
 
-        MethodInfo methodInfo = methodMap.get(methodName);
+    /**
+     * @Description 创建 Flow.Publisher, 每个订阅者第一次 request 时在异步线程池中执行查询,
+     *              之后按请求的数量读取, 没有请求时不占用线程. 游标在读完、出错或 cancel 时关闭, 连接随之归还
+     */
+    @SuppressWarnings("unchecked")
+    private Object publish(MethodInfo methodInfo, Object[] args) {
+        // 查询在其他线程执行, 不能使用当前线程的事务
+        if (currentTransaction.get() != null) {
+            throw new RuntimeException("事务中不能调用返回 Flow.Publisher 的方法: " + methodInfo.name);
+        }
+        return FlowPublishers.adapt(new RowPublisher<>(
+                () -> (Cursor<Object>) execute(methodInfo, args), asyncExecutor()));
+    }
+
+    private Object execute(MethodInfo methodInfo, Object[] args) {
+        MetricsCollector[] collectors = this.collectors;
+        if (collectors == null) {
+            return execute(methodInfo, args, null);
+        }
+        // @WriteBehind 的一组调用按第一次调用的实参记录
+        Invocation invocation = methodInfo.groupRows
+                ? new Invocation(methodInfo.name, methodInfo.sql, methodInfo.binders, (Object[]) ((List<?>) args[0]).get(0), -1)
+                : new Invocation(methodInfo.name, methodInfo.sql, methodInfo.binders, args, methodInfo.batchIndex);
+        try {
+            return execute(methodInfo, args, invocation);
+        } catch (RuntimeException | Error e) {
+            invocation.error = e;
+            throw e;
+        } finally {
+            invocation.finish();
+            for (MetricsCollector collector : collectors) {
+                try {
+                    collector.record(invocation);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private Object execute(MethodInfo methodInfo, Object[] args, Invocation invocation) {
+        // 事务中的查询可能读到未提交的数据, 不读也不写缓存
+        if (methodInfo.cache != null && currentTransaction.get() == null) {
+            if (invocation != null) invocation.cacheHit = true;
+            return methodInfo.cache.get(cacheKey(methodInfo, args), () -> load(methodInfo, args, invocation));
+        }
+        if (methodInfo.rethrow) {
+            return load(methodInfo, args, invocation);
+        }
+        if (methodInfo.getSqlType() == SqlType.Query) {
+            return executeStatement(methodInfo, args, invocation);
+        }
+        try {
+            return executeStatement(methodInfo, args, invocation);
+        } finally {
+            invalidateCaches(methodInfo);
+        }
+    }
+
+    // 事务外执行出错时 executeStatement 打印异常并返回 null, 缓存的加载需要抛出异常, 不缓存失败的结果;
+    // @Coalesce 按键集合的查询同样抛出异常, 使等待的调用全部失败, 而不是得到空结果
+    private Object load(MethodInfo methodInfo, Object[] args, Invocation invocation) {
+        Invocation load = invocation != null ? invocation
+                : new Invocation(methodInfo.name, methodInfo.sql, methodInfo.binders, args, -1);
+        Object ret = executeStatement(methodInfo, args, load);
+        if (load.error != null) throw ParamBinder.propagate(load.error);
+        return ret;
+    }
+
+    // 缓存的键为绑定后的参数值
+    private static Object[] cacheKey(MethodInfo methodInfo, Object[] args) {
+        ParamBinder[] binders = methodInfo.binders;
+        Object[] values = new Object[binders.length];
+        for (int i = 0; i < binders.length; i++) {
+            values[i] = binders[i].value(args);
+        }
+        return values;
+    }
+
+    private Object executeStatement(MethodInfo methodInfo, Object[] args, Invocation invocation) {
+        if (methodInfo.sharded) {
+            return executeSharded(methodInfo, args, invocation);
+        }
+        return executeStatement(methodInfo, args, invocation, null);
+    }
+
+    /**
+     * @Description 分片 Mapper 的调用: 有分片键的值时只访问对应的分片, 没有时查询并行访问所有分片后合并结果
+     */
+    private Object executeSharded(MethodInfo methodInfo, Object[] args, Invocation invocation) {
+        // 各分片的连接不在当前事务中, 无法一起提交和回滚
+        if (currentTransaction.get() != null) {
+            throw new RuntimeException("分片 Mapper 不能在事务中调用: " + methodInfo.name);
+        }
+        Object key = methodInfo.shardKey == null ? null : methodInfo.shardKey.value(args);
+        if (key != null) {
+            return executeStatement(methodInfo, args, invocation, shards.get(shards.shardOf(key)));
+        }
+        if (methodInfo.getSqlType() != SqlType.Query) {
+            throw new RuntimeException("分片 Mapper 的写方法缺少分片键的值: " + methodInfo.name);
+        }
+        if (isStreaming(methodInfo.returnType)) {
+            throw new RuntimeException("返回 Stream/Iterator/Cursor 的分片查询必须提供分片键的值: " + methodInfo.name);
+        }
+        return scatter(methodInfo, args, invocation);
+    }
+
+    // 在线程池中查询其他分片, 当前线程查询第一个分片, 任一分片出错时抛出, 不返回不完整的结果
+    private Object scatter(MethodInfo methodInfo, Object[] args, Invocation invocation) {
+        if (invocation != null) invocation.start();
+        int n = shards.size();
+        Invocation[] parts = new Invocation[n];
+        List<CompletableFuture<Object>> futures = new ArrayList<>(n - 1);
+        for (int i = 1; i < n; i++) {
+            MDataSource target = shards.get(i);
+            Invocation part = parts[i] = new Invocation(methodInfo.name, methodInfo.sql, methodInfo.binders, args, -1);
+            futures.add(CompletableFuture.supplyAsync(
+                    () -> executeStatement(methodInfo, args, part, target), shards.executor()));
+        }
+        parts[0] = new Invocation(methodInfo.name, methodInfo.sql, methodInfo.binders, args, -1);
+        List<Object> results = new ArrayList<>(n);
+        results.add(executeStatement(methodInfo, args, parts[0], shards.get(0)));
+        for (CompletableFuture<Object> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                throw ParamBinder.propagate(e.getCause());
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (parts[i].error != null) {
+                if (invocation != null) invocation.error = parts[i].error;
+                throw new RuntimeException("分片 " + shards.name(i) + " 查询失败: " + methodInfo.name, parts[i].error);
+            }
+        }
+        Object ret = ShardSet.merge(methodInfo.returnType, results, methodInfo.shardMerge, methodInfo.shardOrder, methodInfo.shardLimit);
+        if (invocation != null) {
+            // 各分片并行执行, 每个阶段取最慢的分片
+            for (Invocation part : parts) {
+                invocation.acquireNanos = Math.max(invocation.acquireNanos, part.acquireNanos);
+                invocation.bindNanos = Math.max(invocation.bindNanos, part.bindNanos);
+                invocation.executeNanos = Math.max(invocation.executeNanos, part.executeNanos);
+                invocation.mappingNanos = Math.max(invocation.mappingNanos, part.mappingNanos);
+            }
+            invocation.sql = parts[0].sql;
+            invocation.rows = ret instanceof List ? ((List<?>) ret).size() : parts[0].rows;
+        }
+        return ret;
+    }
 
-        //System.out.println(methodInfo.getSql());
+    /**
+     * @param target 分片库, 为 null 时使用事务中的连接, 从库或主库
+     */
+    private Object executeStatement(MethodInfo methodInfo, Object[] args, Invocation invocation, DataSource target) {
+
+        Object ret = null;
+
+        if (invocation != null) invocation.start();
+        if (isStreaming(methodInfo.returnType)) {
+            return openCursor(methodInfo, args, invocation, target);
+        }
+        if (methodInfo.batchIndex >= 0) {
+            return executeBatch(methodInfo, args, invocation);
+        }
 
         Connection conn = null;
         PreparedStatement pst = null;
         ResultSet rs = null;
+        ReplicaSet.Replica replica = target == null ? route(methodInfo) : null;
 
         try {
-            conn = dataSource.getConnection();
-            if (methodInfo.generatedKey) pst = conn.prepareStatement(methodInfo.getSql(), Statement.RETURN_GENERATED_KEYS);
-            else pst = conn.prepareStatement(methodInfo.getSql());
-            for (int i = 0;i < methodInfo.tags.size();i++) {
-                String[] p = parseTag(methodInfo.tags.get(i));
-                Class<?> paramType = methodInfo.getParamType(p[0]);
-
-                int paramIndex = methodInfo.getParamIndex(p[0]);
-                Object value = null;
-                if (p.length > 1) {
-                    value = BeanUtil.getValue(args[paramIndex], paramType, p[1]);
-                } else {
-                    value = args[paramIndex];
-                }
-                pst.setObject(i+1, value);
-            }
+            if (replica != null && (conn = replicas.getConnection(replica)) == null) replica = null;
+            if (conn == null) conn = target != null ? target.getConnection() : getConnection();
+            if (invocation != null) invocation.acquired();
+            Object id = assignId(methodInfo, args, conn);
+            SqlTemplate.Shape shape = methodInfo.shape(args);
+            if (invocation != null) invocation.sql = shape.sql;
+            if (methodInfo.generatedKey && methodInfo.idAllocator == null) pst = conn.prepareStatement(shape.sql, Statement.RETURN_GENERATED_KEYS);
+            else pst = conn.prepareStatement(shape.sql);
+            shape.bind(pst, args);
+            if (invocation != null) invocation.bound();
 
             if (methodInfo.getSqlType() == SqlType.Insert) {
-                ret = pst.executeUpdate();
-                if (methodInfo.returnType != null || methodInfo.generatedKey) {
+                int count = pst.executeUpdate();
+                ret = count;
+                if (methodInfo.idAllocator != null) {
+                    if (methodInfo.generatedKey) ret = id;
+                } else if (methodInfo.returnType != null || methodInfo.generatedKey) {
                     ResultSet keys = pst.getGeneratedKeys();
                     if (keys.next()) ret = keys.getObject(1);
                 }
+                if (invocation != null) {
+                    invocation.executed();
+                    invocation.rows = count;
+                }
             } else if (methodInfo.getSqlType() == SqlType.Query) {
+                if (methodInfo.fetchSize > 0) pst.setFetchSize(methodInfo.fetchSize);
                 rs = pst.executeQuery();
+                if (invocation != null) invocation.executed();
 
-                if (methodInfo.returnType != null) {
-                    if (methodInfo.returnType.isAssignableFrom(List.class)) {
-                        if (methodInfo.genericType.isAssignableFrom(Map.class)) {
-                            List<Map<String, Object>> list = new ArrayList<>();
-                            if(!resultSetEmpty(rs)) resultSetToListMap(list, rs);
-                            ret = list;
-                        } else if (isBaseType(methodInfo.genericType)) {
-                            List<Object> list = new ArrayList<>();
-                            if(!resultSetEmpty(rs)) resultSetToListBase(list, rs);
-                            ret = list;
-                        }else {
-                            List<Object> list = new ArrayList<>();
-                            if(!resultSetEmpty(rs)) resultSetToListBean(list, methodInfo.genericType, rs);
-                            ret = list;
-                        }
-                    } else if (methodInfo.returnType.isAssignableFrom(Map.class)) {
-                        Map<String, Object> map = new HashMap<>();
-                        if(!resultSetEmpty(rs)) resultSetToMap(map, rs);
-                        ret = map;
-                    } else {
-                        if (!resultSetEmpty(rs)) {
-                            if (isBaseType(methodInfo.returnType)) {
-                                rs.absolute(0);
-                                if (rs.next()) {
-                                    ret = rs.getObject(1);
-                                }
-                            } else {
-                                ret = resultSetToObject(methodInfo.returnType, rs);
-                            }
-                        }
+                int rows = 0;
+                if (methodInfo.sinkIndex >= 0) {
+                    Object sink = args[methodInfo.sinkIndex];
+                    long written = 0;
+                    while (rs.next()) {
+                        written += Lobs.write(rs, 1, sink);
+                        rows++;
+                    }
+                    if (methodInfo.returnType != void.class) ret = written;
+                } else if (ColumnReader.isColumnar(methodInfo.returnType)) {
+                    ret = ColumnReader.read(methodInfo.returnType, rs, methodInfo.fetchSize);
+                    rows = ColumnReader.rowCount(ret);
+                } else if (methodInfo.resultMap != null) {
+                    List<?> list = methodInfo.resultMap.read(rs);
+                    ret = methodInfo.returnType == List.class ? list : list.isEmpty() ? null : list.get(0);
+                    rows = list.size();
+                } else if (methodInfo.returnType == List.class) {
+                    RowReader<?> reader = rowReader(methodInfo, methodInfo.genericType, rs);
+                    List<Object> list = new ArrayList<>();
+                    while (rs.next()) {
+                        list.add(reader.read(rs));
+                    }
+                    ret = list;
+                    rows = list.size();
+                } else if (methodInfo.returnType.isAssignableFrom(Map.class)) {
+                    Map<String, Object> map = new HashMap<>();
+                    if (rs.next()) {
+                        resultSetToMap(map, rs);
+                        rows = 1;
+                    }
+                    ret = map;
+                } else if (methodInfo.returnType != void.class) {
+                    if (rs.next()) {
+                        ret = rowReader(methodInfo, methodInfo.returnType, rs).read(rs);
+                        rows = 1;
                     }
                 }
                 rs.close();
+                if (replica != null) replicas.succeeded(replica);
+                if (invocation != null) {
+                    invocation.mapped();
+                    invocation.rows = rows;
+                }
             } else {
-                ret = pst.executeUpdate();
+                int count = pst.executeUpdate();
+                ret = count;
+                if (invocation != null) {
+                    invocation.executed();
+                    invocation.rows = count;
+                }
             }
             pst.close();
         } catch (SQLException throwables) {
+            if (invocation != null) invocation.error = throwables;
+            if (replica != null) replicas.failed(replica, throwables);
+            // 事务中出错时抛出, 使整个事务回滚
+            if (conn != null && isTransactional(conn)) throw new RuntimeException(throwables);
             throwables.printStackTrace();
         } finally {
             try {
@@ -292,9 +1386,7 @@ public class SqlMapperFactory {
                 if (pst != null) {
                     pst.close();
                 }
-                if (conn != null) {
-                    conn.close();
-                }
+                closeConnection(conn);
             } catch (SQLException throwables) {
                 throwables.printStackTrace();
             }
@@ -302,28 +1394,282 @@ public class SqlMapperFactory {
         return ret;
     }
 
-    private static class MethodInfo {
+    /**
+     * @Description 批量执行, 集合参数中的每个元素绑定一次 SQL, 在一个事务中按 batchSize 分批提交给数据库
+     * @return 返回值为 List 且 generatedKey 时返回全部自增主键, 否则返回每行的更新数 int[]
+     */
+    private Object executeBatch(MethodInfo methodInfo, Object[] args, Invocation invocation) {
+        Iterable<?> items = (Iterable<?>) args[methodInfo.batchIndex];
+        if (items == null) return methodInfo.returnType == List.class ? new ArrayList<>() : new int[0];
+
+        // 每行只替换集合参数所在的位置, 其他参数不变
+        Object[] rowArgs = args.clone();
+        SqlTemplate.Shape shape = methodInfo.shape;
+        int batchSize = methodInfo.batchSize;
+
+        List<Object> keys = new ArrayList<>();
+        int[] counts = new int[16];
+        int total = 0;
+
+        Connection conn = null;
+        PreparedStatement pst = null;
+        boolean autoCommit = true;
+        try {
+            conn = getConnection();
+            if (invocation != null) invocation.acquired();
+            autoCommit = conn.getAutoCommit();
+            if (autoCommit) conn.setAutoCommit(false);
+            if (methodInfo.generatedKey && methodInfo.idAllocator == null) pst = conn.prepareStatement(shape.sql, Statement.RETURN_GENERATED_KEYS);
+            else pst = conn.prepareStatement(shape.sql);
+
+            int pending = 0;
+            for (Object item : items) {
+                Object[] row = rowArgs;
+                if (methodInfo.groupRows) row = (Object[]) item;
+                else rowArgs[methodInfo.batchIndex] = item;
+                Object id = assignId(methodInfo, row, conn);
+                if (id != null && methodInfo.generatedKey) keys.add(id);
+                shape.bind(pst, row);
+                pst.addBatch();
+                if (invocation != null) invocation.bound();
+                if (++pending == batchSize) {
+                    counts = flushBatch(methodInfo, pst, counts, total, keys);
+                    total += pending;
+                    pending = 0;
+                    if (invocation != null) invocation.executed();
+                }
+            }
+            if (pending > 0) {
+                counts = flushBatch(methodInfo, pst, counts, total, keys);
+                total += pending;
+            }
+            if (autoCommit) conn.commit();
+            if (invocation != null) {
+                invocation.executed();
+                invocation.rows = total;
+            }
+        } catch (SQLException | RuntimeException e) {
+            if (conn != null && autoCommit) {
+                try {
+                    conn.rollback();
+                } catch (SQLException throwables) {
+                    throwables.printStackTrace();
+                }
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                if (pst != null) {
+                    pst.close();
+                }
+                if (conn != null && autoCommit) conn.setAutoCommit(true);
+                closeConnection(conn);
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+            }
+        }
+
+        if (methodInfo.returnType == List.class && methodInfo.generatedKey) return keys;
+        return counts.length == total ? counts : Arrays.copyOf(counts, total);
+    }
+
+    /**
+     * @Description 按 @GeneratedId 为主键为 null 或 0 的参数分配主键
+     * @param conn 执行插入的连接, 需要预留新的一段时使用
+     * @return 本行的主键, 没有 @GeneratedId 时为 null
+     */
+    private static Object assignId(MethodInfo methodInfo, Object[] args, Connection conn) throws SQLException {
+        if (methodInfo.idAllocator == null) return null;
+        Object current = methodInfo.idTarget.value(args);
+        if (current != null && ((Number) current).longValue() != 0) return current;
+        long next = methodInfo.idAllocator.next(conn);
+        Object id = methodInfo.idInt ? (Object) Math.toIntExact(next) : (Object) next;
+        if (methodInfo.idSetter == null) {
+            args[methodInfo.idArgIndex] = id;
+            return id;
+        }
+        Object owner = methodInfo.idTarget.owner(args);
+        if (owner == null) throw new RuntimeException("@GeneratedId 的属性所在对象为 null: " + methodInfo.name);
+        try {
+            methodInfo.idSetter.invokeExact(owner, id);
+        } catch (Throwable e) {
+            throw ParamBinder.propagate(e);
+        }
+        return id;
+    }
+
+    // 执行一批并收集更新数和自增主键
+    private int[] flushBatch(MethodInfo methodInfo, PreparedStatement pst, int[] counts, int offset, List<Object> keys) throws SQLException {
+        int[] result = pst.executeBatch();
+        if (counts.length < offset + result.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, offset + result.length));
+        }
+        System.arraycopy(result, 0, counts, offset, result.length);
+        pst.clearBatch();
+        if (methodInfo.generatedKey && methodInfo.idAllocator == null) {
+            try (ResultSet rs = pst.getGeneratedKeys()) {
+                while (rs.next()) keys.add(rs.getObject(1));
+            }
+        }
+        return counts;
+    }
+
+    // 打开只进游标, 连接在游标关闭或遍历结束时归还
+    private Object openCursor(MethodInfo methodInfo, Object[] args, Invocation invocation, DataSource target) {
+        Connection conn = null;
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        ReplicaSet.Replica replica = target == null ? route(methodInfo) : null;
+        try {
+            if (replica != null && (conn = replicas.getConnection(replica)) == null) replica = null;
+            if (conn == null) conn = target != null ? target.getConnection() : getConnection();
+            if (invocation != null) invocation.acquired();
+            SqlTemplate.Shape shape = methodInfo.shape(args);
+            if (invocation != null) invocation.sql = shape.sql;
+            // 默认即为 TYPE_FORWARD_ONLY, CONCUR_READ_ONLY
+            pst = conn.prepareStatement(shape.sql);
+            if (methodInfo.fetchSize > 0) pst.setFetchSize(methodInfo.fetchSize);
+            shape.bind(pst, args);
+            if (invocation != null) invocation.bound();
+            rs = pst.executeQuery();
+            if (replica != null) replicas.succeeded(replica);
+            if (invocation != null) invocation.executed();
+            @SuppressWarnings("unchecked")
+            RowReader<Object> reader = (RowReader<Object>) rowReader(methodInfo, methodInfo.genericType, rs);
+            ResultCursor<Object> cursor = new ResultCursor<>(isTransactional(conn) ? null : conn, pst, rs, reader);
+            if (methodInfo.returnType == Stream.class) return cursor.stream();
+            if (methodInfo.returnType == Iterator.class || methodInfo.returnType == CloseableIterator.class) {
+                return cursor.iterator();
+            }
+            return cursor;
+        } catch (SQLException | RuntimeException e) {
+            if (replica != null && e instanceof SQLException) replicas.failed(replica, (SQLException) e);
+            try {
+                if (rs != null) rs.close();
+                if (pst != null) pst.close();
+                closeConnection(conn);
+            } catch (SQLException throwables) {
+                throwables.printStackTrace();
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class TransactionContext {
+
+        private final Connection connection;
+        // 事务中写操作清空过的缓存
+        private final Set<QueryCache> dirtyCaches = new HashSet<>();
+
+        TransactionContext(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static class MethodInfo implements Cloneable {
 
         private SqlType sqlType;
 
         private String sql;
-        private List<String> tags;
+        // 所有标签的绑定器, 动态 SQL 包括条件中的标签
+        private ParamBinder[] binders;
+        // 静态 SQL 唯一的形状
+        private SqlTemplate.Shape shape;
+        // 动态 SQL 模板, 静态 SQL 为 null
+        private SqlTemplate template;
 
         private final Map<String, Class<?>> paramMap = new HashMap<>();
         private final Map<String, Integer> paramIndex = new HashMap<>();
+        private String[] paramNames;
         private Class<?> returnType;
 
         private Class<?> genericType = null;
 
+        // 查询结果为 Bean 时的行映射器
+        private BeanRowMapper<?> rowMapper;
+        // 标注了 @ResultMap 时合并 JOIN 结果的读取器
+        private ResultMapReader<?> resultMap;
+
+        // 0 表示使用 query.fetchSize 配置
+        private int fetchSize = 0;
+
         private boolean generatedKey = false;
 
+        private String mapperName;
+        // Mapper 类名.方法名
+        private String name;
+
+        // 查询结果缓存, 未开启时为 null
+        private QueryCache cache;
+        // 写方法修改的表, 执行后清空依赖这些表的缓存
+        private String[] writeTables = new String[0];
+
+        // 返回 CompletableFuture, 在线程池中执行
+        private boolean async = false;
+        // 返回 Flow.Publisher, returnType 为 Cursor
+        private boolean publisher = false;
+
+        // 标注了 @Primary, 查询不使用从库
+        private boolean primary = false;
+
+        // 分片 Mapper 的方法
+        private boolean sharded = false;
+        // 分片键, 为 null 时查询访问所有分片
+        private ParamBinder shardKey;
+        // 扇出查询合并 List 结果的顺序和行数上限
+        private Comparator<Object> shardOrder;
+        private int shardLimit;
+        private Shard.Merge shardMerge = Shard.Merge.ROWS;
+
+        // @Coalesce 方法按键集合查询的方法, 及本工厂中收集调用的合并器
+        private MethodInfo coalesceLoad;
+        private KeyCoalescer coalescer;
+        // 执行出错时抛出异常而不是打印后返回 null, 用于 @Coalesce 按键集合的查询
+        private boolean rethrow = false;
+
+        // 标注了 @WriteBehind, 及本工厂中的缓冲区
+        private boolean writeBehind = false;
+        private WriteBehindBuffer writeBuffer;
+        // 批量执行 @WriteBehind 的一组调用, 集合参数中的每个元素是一次调用的全部实参
+        private boolean groupRows = false;
+
+        // @GeneratedId 的主键: 取值用的绑定器, 属性的 setter(为 null 时替换实参), 根参数的下标, 是否为 int
+        private ParamBinder idTarget;
+        private MethodHandle idSetter;
+        private int idArgIndex;
+        private boolean idInt;
+        // 本工厂中的主键分配器
+        private IdAllocator idAllocator;
+
+        // 批量方法中集合参数的下标, -1 表示不是批量方法
+        private int batchIndex = -1;
+        // 查询方法中接收结果的 OutputStream/Writer/WritableByteChannel 参数的下标, -1 表示没有
+        private int sinkIndex = -1;
+        // 0 表示使用 batch.size 配置
+        private int batchSize;
+
         public MethodInfo() {
         }
 
+        // 浅复制, 复制后只修改工厂相关的字段
+        MethodInfo copy() {
+            try {
+                return (MethodInfo) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
         public String getSql() {
             return sql;
         }
 
+        SqlTemplate.Shape shape(Object[] args) {
+            return template == null ? shape : template.shape(args);
+        }
+
         public void setSqlType(SqlType type) {
             this.sqlType = type;
         }
@@ -337,6 +1683,7 @@ public class SqlMapperFactory {
         }
 
         public void setParam(Parameter[] parameters) {
+            paramNames = new String[parameters.length];
             int index = 0;
             for (Parameter p : parameters) {
                 String paramName = null;
@@ -346,11 +1693,16 @@ public class SqlMapperFactory {
                 } else {
                     paramName = p.getName();
                 }
+                paramNames[index] = paramName;
                 paramIndex.put(paramName, index++);
                 paramMap.put(paramName, p.getType());
             }
         }
 
+        public void setParamType(int index, Class<?> type) {
+            paramMap.put(paramNames[index], type);
+        }
+
         public Class<?> getParamType(String paramName) {
             return paramMap.get(paramName);
         }
@@ -2,10 +2,13 @@ package cn.momoky.sql;
 
 import cn.momoky.util.ClassScanner;
 
-import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * @ClassName SqlMapperFactoryBuilder
@@ -16,39 +19,84 @@ import java.util.*;
  */
 public class SqlMapperFactoryBuilder {
 
-    private  static final Map<String, SqlMapperFactory> factoryMap = new HashMap<>();
+    // 配置文件名 - 创建中或已创建的工厂, 不同配置文件的工厂可以同时创建
+    private static final ConcurrentMap<String, FutureTask<SqlMapperFactory>> factoryMap = new ConcurrentHashMap<>();
 
 
-    public static synchronized SqlMapperFactory build(String propertiesName) {
-        if (factoryMap.containsKey(propertiesName)) {
-            return factoryMap.get(propertiesName);
+    public static SqlMapperFactory build(String propertiesName) {
+        FutureTask<SqlMapperFactory> task = factoryMap.get(propertiesName);
+        if (task == null) {
+            // 读取配置文件失败时抛出, 由下面的 ExecutionException 移除
+            FutureTask<SqlMapperFactory> created = new FutureTask<>(() -> create(propertiesName));
+            task = factoryMap.putIfAbsent(propertiesName, created);
+            if (task == null) {
+                task = created;
+                created.run();
+            }
         }
-        SqlMapperFactory factory = null;
         try {
-            factory = create(propertiesName);
-        } catch (IOException e) {
-            e.printStackTrace();
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // 创建失败时不保留, 下次调用重新创建
+            factoryMap.remove(propertiesName, task);
+            throw ParamBinder.propagate(e.getCause());
         }
-        factoryMap.put(propertiesName, factory);
-        return factory;
     }
 
     private static SqlMapperFactory create(String propertiesName) throws IOException {
-        InputStream resource = Thread.currentThread().getContextClassLoader().getResourceAsStream(propertiesName);
-
         Properties properties = new Properties();
-        properties.load(resource);
+        try (InputStream resource = Thread.currentThread().getContextClassLoader().getResourceAsStream(propertiesName)) {
+            if (resource == null) throw new IOException("找不到配置文件 " + propertiesName);
+            properties.load(resource);
+        }
 
         String driver = properties.getProperty("driver");
         String url = properties.getProperty("url");
         String user = properties.getProperty("user");
         String password = properties.getProperty("password");
         String pkg = properties.getProperty("package");
-        DataSource dataSource = new MDataSource(driver, url, user, password);
+        PoolConfig poolConfig = PoolConfig.fromProperties(properties);
+
+        List<Class<?>> classes = loadIndexed(pkg);
+        Set<String> indexed = new HashSet<>();
+        for (Class<?> clazz : classes) indexed.add(clazz.getName());
+        for (Class<?> clazz : ClassScanner.scanMappers(pkg, MapperIndex.LOCATION)) {
+            if (indexed.add(clazz.getName())) classes.add(clazz);
+        }
 
-        List<Class<?>> classes = ClassScanner.scan(pkg);
+        MDataSource dataSource = null;
+        ReplicaSet replicas = null;
+        ShardSet shards = null;
+        try {
+            dataSource = new MDataSource(driver, url, user, password, poolConfig);
+            replicas = ReplicaSet.fromProperties(properties, driver, user, password, poolConfig);
+            shards = ShardSet.fromProperties(properties, driver, user, password, poolConfig);
+            return new SqlMapperFactory(classes, dataSource, replicas, shards, properties);
+        } catch (RuntimeException | Error e) {
+            // 创建失败的工厂不会被使用, 关闭已经创建的连接池
+            if (shards != null) shards.close();
+            if (replicas != null) replicas.close();
+            if (dataSource != null) dataSource.close();
+            throw e;
+        }
+    }
 
-        return new SqlMapperFactory(classes, dataSource);
+    // 加载编译期生成的索引中属于 pkg 的 Mapper, 自带索引的类路径项不再扫描, 其余的仍按包扫描
+    private static List<Class<?>> loadIndexed(String pkg) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        List<Class<?>> classes = new ArrayList<>();
+        for (String className : MapperIndex.load(loader).keySet()) {
+            if (!className.startsWith(pkg + ".")) continue;
+            try {
+                classes.add(loader.loadClass(className));
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+        return classes;
     }
 
 }
@@ -0,0 +1,349 @@
+package cn.momoky.sql;
+
+import java.lang.reflect.Array;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * @ClassName SqlTemplate
+ * @Description 动态 SQL 模板, 支持两种写法:
+ *              1. 声明类型为集合或数组的 #{ids} 展开为 ?, ?, ..., 个数不超过 MAX_PADDED 时向上取整到 2 的幂,
+ *                 多出的位置重复绑定最后一个元素, 使 IN 列表只产生少量不同的 SQL, 预编译语句缓存仍然有效;
+ *                 超过时按实际个数展开, 补齐不会使参数个数超过驱动的上限. 集合为 null 或空时抛出异常,
+ *                 IN () 不是合法的 SQL, 绑定 NULL 又会使 NOT IN 不返回任何行, 可能为空的集合应放在 /*#if*{@code /} 中
+ *              2. {@code /*#if name*}{@code /} ... {@code /*#end*}{@code /} 中的片段只在 #{name} 的值不为 null
+ *                 (集合和数组还要求不为空) 时拼接, 可以嵌套
+ *              每种形状(各条件是否成立以及各集合展开的个数)只编译一次, 缓存 SQL 和绑定顺序
+ * @Author 钟智峰
+ * @Date 2020/9/23 09:30
+ * @Version 1.0
+ */
+final class SqlTemplate {
+
+    private static final String IF = "/*#if ";
+    private static final String END = "/*#end*/";
+
+    // 缓存的形状数量上限, 超过后新形状每次调用重新拼接
+    private static final int MAX_SHAPES = 256;
+
+    // 集合展开时补齐到 2 的幂的最大个数
+    static final int MAX_PADDED = 256;
+
+    private final Node[] nodes;
+    // 模板中所有标签(包括条件)的绑定器, 按出现顺序, 用于缓存键和慢查询日志
+    private final ParamBinder[] binders;
+    // 一次调用最多需要记录的条件和集合个数
+    private final int decisionCount;
+    private final boolean dynamic;
+    // 没有条件和集合参数时唯一的形状
+    private final Shape staticShape;
+
+    private final Map<ShapeKey, Shape> shapes = new ConcurrentHashMap<>();
+
+    private SqlTemplate(Node[] nodes, ParamBinder[] binders) {
+        this.nodes = nodes;
+        this.binders = binders;
+        this.decisionCount = countDecisions(nodes);
+        this.dynamic = decisionCount > 0;
+        this.staticShape = dynamic ? null : compile(new int[0]);
+    }
+
+    /**
+     * @Description 解析模板
+     * @param sql 注解中的 SQL
+     * @param compiler 将 #{...} 标签编译为绑定器
+     * @return 模板
+     */
+    static SqlTemplate parse(String sql, Function<String, ParamBinder> compiler) {
+        List<ParamBinder> binders = new ArrayList<>();
+        int[] pos = {0};
+        List<Node> nodes = parse(sql, pos, compiler, binders, false);
+        return new SqlTemplate(nodes.toArray(new Node[0]), binders.toArray(new ParamBinder[0]));
+    }
+
+    private static List<Node> parse(String sql, int[] pos, Function<String, ParamBinder> compiler,
+                                    List<ParamBinder> binders, boolean nested) {
+        List<Node> nodes = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        int i = pos[0];
+        while (i < sql.length()) {
+            if (sql.startsWith("#{", i)) {
+                int close = sql.indexOf('}', i);
+                if (close < 0) throw new RuntimeException("SQL 中的 #{ 没有闭合: " + sql);
+                flush(nodes, text);
+                ParamBinder binder = compiler.apply(sql.substring(i + 2, close));
+                binders.add(binder);
+                nodes.add(new Placeholder(binder, sql.substring(i, close + 1)));
+                i = close + 1;
+            } else if (sql.startsWith(IF, i)) {
+                int close = sql.indexOf("*/", i);
+                if (close < 0) throw new RuntimeException("SQL 中的 /*#if 没有闭合: " + sql);
+                flush(nodes, text);
+                ParamBinder test = compiler.apply(sql.substring(i + IF.length(), close).trim());
+                binders.add(test);
+                pos[0] = close + 2;
+                List<Node> children = parse(sql, pos, compiler, binders, true);
+                nodes.add(new Condition(test, children.toArray(new Node[0])));
+                i = pos[0];
+            } else if (sql.startsWith(END, i)) {
+                if (!nested) throw new RuntimeException("SQL 中的 /*#end*/ 没有对应的 /*#if*/: " + sql);
+                flush(nodes, text);
+                pos[0] = i + END.length();
+                return nodes;
+            } else {
+                text.append(sql.charAt(i++));
+            }
+        }
+        if (nested) throw new RuntimeException("SQL 中的 /*#if*/ 缺少 /*#end*/: " + sql);
+        flush(nodes, text);
+        pos[0] = i;
+        return nodes;
+    }
+
+    private static void flush(List<Node> nodes, StringBuilder text) {
+        if (text.length() == 0) return;
+        nodes.add(new Text(text.toString()));
+        text.setLength(0);
+    }
+
+    private static int countDecisions(Node[] nodes) {
+        int count = 0;
+        for (Node node : nodes) {
+            if (node instanceof Placeholder && ((Placeholder) node).collection) count++;
+            if (node instanceof Condition) count += 1 + countDecisions(((Condition) node).children);
+        }
+        return count;
+    }
+
+    /**
+     * @Description 是否包含条件片段或集合参数, 否则 SQL 和绑定顺序固定
+     */
+    boolean isDynamic() {
+        return dynamic;
+    }
+
+    ParamBinder[] getBinders() {
+        return binders;
+    }
+
+    /**
+     * @Description 按实参取得对应形状的 SQL 和绑定顺序
+     * @param args Mapper 方法的实参
+     * @return 形状
+     */
+    Shape shape(Object[] args) {
+        if (!dynamic) return staticShape;
+        int[] decisions = new int[decisionCount];
+        int n = decide(nodes, args, decisions, 0);
+        ShapeKey key = new ShapeKey(n == decisions.length ? decisions : Arrays.copyOf(decisions, n));
+        Shape shape = shapes.get(key);
+        if (shape == null) {
+            shape = compile(key.decisions);
+            if (shapes.size() < MAX_SHAPES) shapes.putIfAbsent(key, shape);
+        }
+        return shape;
+    }
+
+    // 依次记录每个条件是否成立和每个集合的展开个数, 未拼接的片段中的节点不记录
+    private static int decide(Node[] nodes, Object[] args, int[] decisions, int n) {
+        for (Node node : nodes) {
+            if (node instanceof Placeholder) {
+                Placeholder placeholder = (Placeholder) node;
+                if (!placeholder.collection) continue;
+                int size = size(placeholder.binder.value(args));
+                if (size == 0) {
+                    throw new RuntimeException("集合参数 " + placeholder.tag + " 为 null 或空, 可能为空时请放在 /*#if*/ 中");
+                }
+                decisions[n++] = bucket(size);
+            } else if (node instanceof Condition) {
+                Condition condition = (Condition) node;
+                boolean test = isPresent(condition.test.value(args));
+                decisions[n++] = test ? 1 : 0;
+                if (test) n = decide(condition.children, args, decisions, n);
+            }
+        }
+        return n;
+    }
+
+    private Shape compile(int[] decisions) {
+        StringBuilder sql = new StringBuilder();
+        List<ParamBinder> slots = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        compile(nodes, decisions, new int[]{0}, sql, slots, sizes);
+        int[] expand = new int[sizes.size()];
+        for (int i = 0; i < expand.length; i++) {
+            expand[i] = sizes.get(i);
+        }
+        return new Shape(sql.toString(), slots.toArray(new ParamBinder[0]), expand);
+    }
+
+    private static void compile(Node[] nodes, int[] decisions, int[] next, StringBuilder sql,
+                                List<ParamBinder> slots, List<Integer> sizes) {
+        for (Node node : nodes) {
+            if (node instanceof Text) {
+                sql.append(((Text) node).text);
+            } else if (node instanceof Placeholder) {
+                Placeholder placeholder = (Placeholder) node;
+                int size = placeholder.collection ? decisions[next[0]++] : 0;
+                slots.add(placeholder.binder);
+                sizes.add(size);
+                if (size == 0) {
+                    sql.append('?');
+                } else {
+                    for (int i = 0; i < size; i++) {
+                        sql.append(i == 0 ? "?" : ", ?");
+                    }
+                }
+            } else {
+                Condition condition = (Condition) node;
+                if (decisions[next[0]++] == 1) compile(condition.children, decisions, next, sql, slots, sizes);
+            }
+        }
+    }
+
+    // 展开的个数: 1, 2, 4, 8 ... MAX_PADDED, 之后为实际个数
+    static int bucket(int size) {
+        if (size <= 1) return 1;
+        if (size > MAX_PADDED) return size;
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int size(Object value) {
+        if (value == null) return 0;
+        if (value instanceof Collection) return ((Collection<?>) value).size();
+        if (value.getClass().isArray()) return Array.getLength(value);
+        int size = 0;
+        for (Iterator<?> it = ((Iterable<?>) value).iterator(); it.hasNext(); it.next()) size++;
+        return size;
+    }
+
+    private static boolean isPresent(Object value) {
+        if (value == null) return false;
+        if (value instanceof Collection) return !((Collection<?>) value).isEmpty();
+        if (value.getClass().isArray() && !(value instanceof byte[])) return Array.getLength(value) > 0;
+        return true;
+    }
+
+    /**
+     * @ClassName Shape
+     * @Description 一种形状编译后的 SQL 和占位符的绑定顺序
+     */
+    static final class Shape {
+
+        final String sql;
+        private final ParamBinder[] slots;
+        // 每个位置展开的个数, 0 表示普通参数
+        private final int[] expand;
+
+        Shape(String sql, ParamBinder[] slots, int[] expand) {
+            this.sql = sql;
+            this.slots = slots;
+            this.expand = expand;
+        }
+
+        /**
+         * @Description 绑定全部占位符
+         * @param pst 预编译语句
+         * @param args Mapper 方法的实参
+         */
+        void bind(PreparedStatement pst, Object[] args) throws SQLException {
+            int index = 1;
+            for (int i = 0; i < slots.length; i++) {
+                int size = expand[i];
+                if (size == 0) {
+                    slots[i].bind(pst, index++, args);
+                } else {
+                    bindAll(pst, index, size, slots[i].value(args));
+                    index += size;
+                }
+            }
+        }
+
+        private static void bindAll(PreparedStatement pst, int index, int size, Object value) throws SQLException {
+            Object last = null;
+            int bound = 0;
+            if (value != null && value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                for (; bound < length && bound < size; bound++) {
+                    last = Array.get(value, bound);
+                    pst.setObject(index + bound, last);
+                }
+            } else if (value != null) {
+                for (Iterator<?> it = ((Iterable<?>) value).iterator(); it.hasNext() && bound < size; bound++) {
+                    last = it.next();
+                    pst.setObject(index + bound, last);
+                }
+            }
+            // 补齐到展开的个数, 重复最后一个元素不改变 IN 的结果
+            for (; bound < size; bound++) {
+                pst.setObject(index + bound, last);
+            }
+        }
+    }
+
+    private static final class ShapeKey {
+
+        private final int[] decisions;
+        private final int hash;
+
+        ShapeKey(int[] decisions) {
+            this.decisions = decisions;
+            this.hash = Arrays.hashCode(decisions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ShapeKey && Arrays.equals(decisions, ((ShapeKey) o).decisions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private abstract static class Node {
+    }
+
+    private static final class Text extends Node {
+
+        private final String text;
+
+        Text(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Placeholder extends Node {
+
+        private final ParamBinder binder;
+        private final boolean collection;
+        // 原始标签, 如 #{ids}, 用于错误信息
+        private final String tag;
+
+        Placeholder(ParamBinder binder, String tag) {
+            this.binder = binder;
+            this.collection = binder.isCollection();
+            this.tag = tag;
+        }
+    }
+
+    private static final class Condition extends Node {
+
+        private final ParamBinder test;
+        private final Node[] children;
+
+        Condition(ParamBinder test, Node[] children) {
+            this.test = test;
+            this.children = children;
+        }
+    }
+}
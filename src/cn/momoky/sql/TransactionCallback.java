@@ -0,0 +1,15 @@
+package cn.momoky.sql;
+
+/**
+ * @ClassName TransactionCallback
+ * @Description 在事务中执行的代码块, 其中的 Mapper 调用共用同一个连接
+ * @Author 钟智峰
+ * @Date 2020/9/18 15:20
+ * @Version 1.0
+ */
+@FunctionalInterface
+public interface TransactionCallback<T> {
+
+    T doInTransaction() throws Exception;
+
+}
@@ -0,0 +1,127 @@
+package cn.momoky.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * @ClassName WriteBehindBuffer
+ * @Description 一个 @WriteBehind 方法的缓冲区. 调用线程把实参放入无锁队列后返回 Future, 后台写线程在行数达到 size
+ *              或最早的调用等待了 delay 后取出一组交给 writer 在一个事务中批量执行, 提交后按顺序完成各行的 Future.
+ *              执行失败时整组回滚, 组内所有 Future 以同一异常完成. capacity 个许可限制缓冲的调用数, 写线程跟不上时调用线程阻塞.
+ *              写线程为守护线程, 第一次调用时启动, JVM 退出时未执行的调用会丢失, 只有完成的 Future 表示已提交.
+ *              Future 在写线程中完成, 其回调不能同步等待同一缓冲区的其他调用
+ * @Author 钟智峰
+ * @Date 2020/9/28 10:00
+ * @Version 1.0
+ */
+final class WriteBehindBuffer {
+
+    // 批量执行一组调用的实参, 返回每行的结果
+    private final Function<List<Object[]>, Object[]> writer;
+    private final int size;
+    private final long delayNanos;
+    private final Semaphore permits;
+    private final String name;
+
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    // 队列中的调用数
+    private final AtomicInteger count = new AtomicInteger();
+
+    private volatile Thread thread;
+
+    WriteBehindBuffer(Function<List<Object[]>, Object[]> writer, int size, long delay, int capacity, String name) {
+        this.writer = writer;
+        this.size = size;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+        this.permits = new Semaphore(capacity);
+        this.name = name;
+    }
+
+    /**
+     * @Description 放入一次调用, 缓冲区已满时阻塞
+     * @param args 方法的实参
+     * @return 该行提交后完成的 Future
+     */
+    CompletableFuture<Object> submit(Object[] args) {
+        Thread writerThread = thread;
+        if (writerThread == null) writerThread = start();
+        permits.acquireUninterruptibly();
+        Pending pending = new Pending(args);
+        queue.offer(pending);
+        int n = count.incrementAndGet();
+        // 队列由空变为非空时写线程开始计时, 达到 size 时立即执行
+        if (n == 1 || n >= size) LockSupport.unpark(writerThread);
+        return pending.future;
+    }
+
+    private synchronized Thread start() {
+        if (thread == null) {
+            Thread t = new Thread(this::run, "sql-mapper-write-behind-" + name);
+            t.setDaemon(true);
+            t.start();
+            thread = t;
+        }
+        return thread;
+    }
+
+    private void run() {
+        List<Pending> group = new ArrayList<>(size);
+        for (;;) {
+            Pending first = queue.peek();
+            if (first == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            long wait = first.enqueuedAt + delayNanos - System.nanoTime();
+            if (count.get() < size && wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            Pending pending;
+            while (group.size() < size && (pending = queue.poll()) != null) {
+                group.add(pending);
+            }
+            count.addAndGet(-group.size());
+            write(group);
+            permits.release(group.size());
+            group.clear();
+        }
+    }
+
+    private void write(List<Pending> group) {
+        List<Object[]> rows = new ArrayList<>(group.size());
+        for (Pending pending : group) {
+            rows.add(pending.args);
+        }
+        Object[] results;
+        try {
+            results = writer.apply(rows);
+        } catch (Throwable e) {
+            for (Pending pending : group) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).future.complete(results[i]);
+        }
+    }
+
+    private static final class Pending {
+
+        private final Object[] args;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        Pending(Object[] args) {
+            this.args = args;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package cn.momoky.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -99,6 +102,66 @@ public class BeanUtil {
         return value;
     }
 
+    /**
+     * @Description 查找属性的 getter (getXxx 或 isXxx, 包括父类中声明的) 并转换为 MethodHandle
+     * @param clazz 对象字节码
+     * @param fieldName 属性名
+     * @return getter 对应的 MethodHandle, 类型为 (clazz)属性类型
+     */
+    public static MethodHandle getterHandle(Class<?> clazz, String fieldName) {
+        Method getter = findMethod(clazz, "get" + upperFirstLetter(fieldName));
+        if (getter == null) getter = findMethod(clazz, "is" + upperFirstLetter(fieldName));
+        if (getter == null || getter.getReturnType() == void.class) {
+            throw new RuntimeException(clazz.getName() + " 中没有属性 " + fieldName + " 的 getter");
+        }
+        try {
+            getter.setAccessible(true);
+            return MethodHandles.lookup().unreflect(getter);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @Description 查找类及其父类中所有属性的 setter 并转换为 MethodHandle
+     * @param clazz 对象字节码
+     * @return 属性名 - setter 的映射, setter 类型为 (clazz, 属性类型)void
+     */
+    public static Map<String, MethodHandle> setterHandles(Class<?> clazz) {
+        Map<String, MethodHandle> setters = new HashMap<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                String name = m.getName();
+                if (name.length() <= 3 || !name.startsWith("set") || m.getParameterCount() != 1
+                        || Modifier.isStatic(m.getModifiers())) continue;
+                String fieldName = name.substring(3, 4).toLowerCase() + name.substring(4);
+                if (setters.containsKey(fieldName)) continue;
+                try {
+                    m.setAccessible(true);
+                    setters.put(fieldName, MethodHandles.lookup().unreflect(m));
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return setters;
+    }
+
+    // 在类及其父类中查找无参方法
+    private static Method findMethod(Class<?> clazz, String name) {
+        try {
+            return clazz.getMethod(name);
+        } catch (NoSuchMethodException ignored) {
+        }
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredMethod(name);
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        return null;
+    }
+
     /**
      * @Description 将开头字母大写
      * @param str
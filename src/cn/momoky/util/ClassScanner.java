@@ -1,30 +1,57 @@
 package cn.momoky.util;
 
+import cn.momoky.annotation.Mapper;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
 
 
 /**
  * @ClassName ClassScanner
- * @Description 扫描指定包下的所有类
+ * @Description 扫描指定包下的所有类. 遍历类路径上的每个目录和 jar 包(包括 fat jar 中嵌套的 jar 包),
+ *              目录按子目录并行遍历; scanMappers 直接解析类文件的常量池查找 @Mapper, 只加载找到的接口
  * @Author 钟智峰
  * @Date 2020/9/7 20:09
  * @Version 1.0
  */
 public class ClassScanner {
 
+    private static final byte[] MAPPER_DESCRIPTOR =
+            ("L" + Mapper.class.getName().replace('.', '/') + ";").getBytes(StandardCharsets.UTF_8);
+
+    // fat jar / war 中类文件所在的目录
+    private static final String[] NESTED_CLASS_ROOTS = {"BOOT-INF/classes/", "WEB-INF/classes/"};
+
+    private static final int ACC_INTERFACE = 0x0200;
+
     /**
      * @Description 判断当前类是否运行在jar包中
      * @return
+     * @deprecated 扫描时不再区分目录和 jar 包, 类路径上的每一项都会被扫描
      */
+    @Deprecated
     public static boolean isRunJar() throws MalformedURLException {
         URL url = ClassScanner.class.getResource("");
         String u = url.toString();
@@ -36,95 +63,339 @@ public class ClassScanner {
     }
 
     /**
-     * @Description 扫描指定包下的所有类
+     * @Description 扫描指定包下的所有类, 类只加载不初始化
      * @param pkg 包名
      * @return Class 对象 集合
      */
     public static List<Class<?>> scan(String pkg)  {
-        List<String> list;
-        List<Class<?>> classes = null;
-        try {
-            if (isRunJar()) {
-                list = scanJar(pkg);
-            } else {
-                list = scanFile(pkg);
+        return loadClass(findClassNames(pkg, false, null));
+    }
+
+    /**
+     * @Description 扫描指定包下标注了 @Mapper 的接口, 通过类文件的常量池判断, 不加载其他类
+     * @param pkg 包名
+     * @return Mapper 接口集合
+     */
+    public static List<Class<?>> scanMappers(String pkg) {
+        return scanMappers(pkg, null);
+    }
+
+    /**
+     * @Description 扫描指定包下标注了 @Mapper 的接口, 跳过包含 indexResource 的目录和 jar 包(或 fat jar 中的类目录),
+     *              这些类路径项中的 Mapper 由调用方从索引中读取; fat jar 中嵌套的 jar 包仍然扫描
+     * @param pkg 包名
+     * @param indexResource 编译期生成的索引文件, 如 META-INF/sql-mapper.index, 为 null 时扫描全部
+     * @return Mapper 接口集合
+     */
+    public static List<Class<?>> scanMappers(String pkg, String indexResource) {
+        return loadClass(findClassNames(pkg, true, indexResource));
+    }
+
+    // 加载类但不执行静态初始化
+    private static List<Class<?>> loadClass(List<String> classFullNames) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        List<Class<?>> classes = new ArrayList<>();
+        for (String classFullName : classFullNames) {
+            try {
+                classes.add(Class.forName(classFullName, false, loader));
+            } catch (ClassNotFoundException | LinkageError e) {
+                e.printStackTrace();
             }
+        }
+        return classes;
+    }
 
-            classes = loadClass(list);
-        } catch (IOException | ClassNotFoundException e) {
+    private static List<String> findClassNames(String pkg, boolean mappersOnly, String indexResource) {
+        String pkgPath = pkg == null || pkg.isEmpty() ? "" : pkg.replace('.', '/') + "/";
+        Queue<String> names = new ConcurrentLinkedQueue<>();
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (File root : classpathRoots(pkgPath)) {
+            if (root.isDirectory()) {
+                if (indexResource != null && new File(root, indexResource).isFile()) continue;
+                File dir = pkgPath.isEmpty() ? root : new File(root, pkgPath);
+                if (dir.isDirectory()) {
+                    tasks.add(new DirectoryTask(dir, pkg == null || pkg.isEmpty() ? "" : pkg + ".", mappersOnly, names));
+                }
+            } else if (root.isFile() && root.getName().endsWith(".jar")) {
+                tasks.add(new JarTask(root, pkgPath, mappersOnly, indexResource, names));
+            }
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        List<String> result = new ArrayList<>(names);
+        Collections.sort(result);
+        // 同一个类出现在多个类路径项中时只保留一个
+        for (int i = result.size() - 1; i > 0; i--) {
+            if (result.get(i).equals(result.get(i - 1))) result.remove(i);
+        }
+        return result;
+    }
+
+    // 类路径上的目录和 jar 包: 包含 pkgPath 的资源、URLClassLoader 的 URL 和 java.class.path
+    private static List<File> classpathRoots(String pkgPath) {
+        Map<String, File> roots = new LinkedHashMap<>();
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            Enumeration<URL> resources = loader.getResources(pkgPath);
+            while (resources.hasMoreElements()) {
+                URL url = resources.nextElement();
+                File root = toFile(url);
+                if (root == null) continue;
+                if ("file".equals(url.getProtocol()) && !pkgPath.isEmpty()) {
+                    // 目录资源指向包目录本身, 退回到类路径根目录
+                    for (int i = 0; i < pkgPath.split("/").length && root != null; i++) root = root.getParentFile();
+                }
+                if (root != null) addRoot(roots, root);
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            if (!(l instanceof URLClassLoader)) continue;
+            for (URL url : ((URLClassLoader) l).getURLs()) {
+                File root = toFile(url);
+                if (root != null) addRoot(roots, root);
+            }
+        }
+        String classPath = System.getProperty("java.class.path", "");
+        for (String entry : classPath.split(File.pathSeparator)) {
+            if (!entry.isEmpty()) addRoot(roots, new File(entry));
+        }
+        return new ArrayList<>(roots.values());
+    }
 
-        return classes;
+    private static void addRoot(Map<String, File> roots, File root) {
+        try {
+            root = root.getCanonicalFile();
+        } catch (IOException e) {
+            root = root.getAbsoluteFile();
+        }
+        roots.putIfAbsent(root.getPath(), root);
     }
 
-    // 加载 *.class 文件
-    private static List<Class<?>> loadClass(List<String> classFullNames) throws ClassNotFoundException {
+    // file:/a/b 转为目录, jar:file:/a.jar!/x 转为最外层的 jar 包
+    private static File toFile(URL url) {
+        try {
+            if ("file".equals(url.getProtocol())) {
+                return new File(url.toURI());
+            }
+            if ("jar".equals(url.getProtocol())) {
+                String path = url.getPath();
+                int sep = path.indexOf("!/");
+                if (sep >= 0) path = path.substring(0, sep);
+                if (!path.startsWith("file:")) return null;
+                return new File(URLDecoder.decode(path.substring(5), "UTF-8"));
+            }
+        } catch (URISyntaxException | IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-        if (classFullNames.size() == 0) return null;
-        List<Class<?>> classes = new ArrayList<>();
-        for (String classFullName : classFullNames) {
-            Class<?> clazz = Thread.currentThread().getContextClassLoader().loadClass(classFullName);
-            classes.add(clazz);
+    // 遍历目录, 子目录作为子任务并行执行
+    private static final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final String prefix;
+        private final boolean mappersOnly;
+        private final Queue<String> names;
+
+        DirectoryTask(File dir, String prefix, boolean mappersOnly, Queue<String> names) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.mappersOnly = mappersOnly;
+            this.names = names;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            List<DirectoryTask> subTasks = new ArrayList<>();
+            for (File f : files) {
+                String name = f.getName();
+                if (f.isDirectory()) {
+                    subTasks.add(new DirectoryTask(f, prefix + name + ".", mappersOnly, names));
+                } else if (isClassFile(name)) {
+                    try {
+                        if (!mappersOnly || isMapper(Files.readAllBytes(f.toPath()))) {
+                            names.add(prefix + name.substring(0, name.length() - 6));
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            invokeAll(subTasks);
         }
-        return classes;
     }
 
-    // 扫描普通文件
-    private static List<String> scanFile(String pkg) {
+    // 遍历 jar 包, 包括 BOOT-INF/classes 等目录和嵌套的 jar 包
+    private static final class JarTask extends RecursiveAction {
 
+        private static final long serialVersionUID = 1L;
 
-        String path = ClassScanner.class.getResource("/").getPath();
-        String pkgPath = pkg.replaceAll("\\.", "/");
-        int prefixLen = path.length();
-        File root = new File(path + pkgPath);
+        private final File file;
+        private final String pkgPath;
+        private final boolean mappersOnly;
+        private final String indexResource;
+        private final Queue<String> names;
 
-        if (!root.exists()) throw new RuntimeException(pkg + "包不存在");
+        // 自带索引的类目录: "" 为 jar 包根目录, 或 NESTED_CLASS_ROOTS 中的目录
+        private final List<String> indexedRoots = new ArrayList<>();
 
-        Stack<File> stack = new Stack<>();
-        stack.push(root);
+        JarTask(File file, String pkgPath, boolean mappersOnly, String indexResource, Queue<String> names) {
+            this.file = file;
+            this.pkgPath = pkgPath;
+            this.mappersOnly = mappersOnly;
+            this.indexResource = indexResource;
+            this.names = names;
+        }
 
-        List<String> classFullNames = new ArrayList<>();
+        @Override
+        protected void compute() {
+            try (JarFile jarFile = new JarFile(file)) {
+                if (indexResource != null) {
+                    if (jarFile.getEntry(indexResource) != null) indexedRoots.add("");
+                    for (String root : NESTED_CLASS_ROOTS) {
+                        if (jarFile.getEntry(root + indexResource) != null) indexedRoots.add(root);
+                    }
+                }
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String entryName = entry.getName();
+                    if (entryName.endsWith(".jar")) {
+                        try (InputStream in = jarFile.getInputStream(entry)) {
+                            scanNested(new JarInputStream(in));
+                        }
+                        continue;
+                    }
+                    String className = className(entryName);
+                    if (className == null || indexedRoots.contains(classRoot(entryName))) continue;
+                    if (!mappersOnly) {
+                        names.add(className);
+                        continue;
+                    }
+                    try (InputStream in = jarFile.getInputStream(entry)) {
+                        if (isMapper(readAll(in))) names.add(className);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-        while (!stack.isEmpty()) {
-            root = stack.pop();
-            if (!root.isDirectory()) {
-                String fileName = root.getAbsolutePath();
-                if (fileName.endsWith(".class")) {
-                    String classFullName = fileName.substring(prefixLen - 1, fileName.length() - 6)
-                            .replaceAll("\\\\|/", ".");
-                    classFullNames.add(classFullName);
+        private void scanNested(JarInputStream in) throws IOException {
+            JarEntry entry;
+            while ((entry = in.getNextJarEntry()) != null) {
+                String entryName = entry.getName();
+                if (entryName.endsWith(".jar")) {
+                    scanNested(new JarInputStream(in));
+                    continue;
                 }
-                continue;
+                String className = className(entryName);
+                if (className == null) continue;
+                if (!mappersOnly || isMapper(readAll(in))) names.add(className);
             }
-            File[] files = root.listFiles();
-            if (files == null) continue;
-            for (File f : files) {
-                stack.push(f);
+        }
+
+        // 类文件所在的类目录
+        private String classRoot(String entryName) {
+            for (String root : NESTED_CLASS_ROOTS) {
+                if (entryName.startsWith(root)) return root;
             }
+            return "";
         }
-        return classFullNames;
-    }
-
-    // 扫描 jar 包
-    private static List<String> scanJar(String pkg) throws IOException {
-        String pkgPath = pkg.replaceAll("\\.", "/");
-        List<String> classFullNames = new ArrayList<>();
-
-        File root = new File(System.getProperty("user.dir"));
-        File[] files = root.listFiles((dir, name) -> name.endsWith(".jar"));
-        assert files != null;
-        JarFile jarFile = new JarFile(files[0].getAbsolutePath());
-        Enumeration<JarEntry> entries = jarFile.entries();
-        while (entries.hasMoreElements()) {
-            JarEntry jarEntry = entries.nextElement();
-            String jarEntryName = jarEntry.getName();
-            if (jarEntryName.startsWith(pkgPath) && jarEntryName.endsWith(".class")) {
-                String classFullName = jarEntryName.substring(0, jarEntryName.length() - 6)
-                        .replaceAll("/", ".");
-                classFullNames.add(classFullName);
+
+        // 属于 pkgPath 的类文件返回类名, 否则返回 null
+        private String className(String entryName) {
+            if (!isClassFile(entryName)) return null;
+            for (String root : NESTED_CLASS_ROOTS) {
+                if (entryName.startsWith(root)) {
+                    entryName = entryName.substring(root.length());
+                    break;
+                }
             }
+            if (!entryName.startsWith(pkgPath)) return null;
+            return entryName.substring(0, entryName.length() - 6).replace('/', '.');
+        }
+    }
+
+    private static boolean isClassFile(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class") && !name.endsWith("package-info.class");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @Description 解析类文件的常量池, 类为接口且常量池中有 @Mapper 的类型描述符时返回 true.
+     *              注解的类型描述符只会以 CONSTANT_Utf8 出现在常量池中, 加载后 SqlMapperFactory 会再次校验注解
+     * @param b 类文件内容
+     */
+    static boolean isMapper(byte[] b) {
+        try {
+            if (b.length < 10 || (b[0] & 0xff) != 0xCA || (b[1] & 0xff) != 0xFE
+                    || (b[2] & 0xff) != 0xBA || (b[3] & 0xff) != 0xBE) return false;
+            int count = u2(b, 8);
+            int pos = 10;
+            boolean found = false;
+            for (int i = 1; i < count; i++) {
+                int tag = b[pos] & 0xff;
+                switch (tag) {
+                    case 1: {
+                        int len = u2(b, pos + 1);
+                        if (!found && len == MAPPER_DESCRIPTOR.length) found = matches(b, pos + 3);
+                        pos += 3 + len;
+                        break;
+                    }
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                        pos += 5;
+                        break;
+                    case 5: case 6:
+                        // long 和 double 占两个常量池项
+                        pos += 9;
+                        i++;
+                        break;
+                    case 7: case 8: case 16: case 19: case 20:
+                        pos += 3;
+                        break;
+                    case 15:
+                        pos += 4;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            return found && (u2(b, pos) & ACC_INTERFACE) != 0;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    private static int u2(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static boolean matches(byte[] b, int pos) {
+        for (int i = 0; i < MAPPER_DESCRIPTOR.length; i++) {
+            if (b[pos + i] != MAPPER_DESCRIPTOR[i]) return false;
         }
-        return classFullNames;
+        return true;
     }
 }